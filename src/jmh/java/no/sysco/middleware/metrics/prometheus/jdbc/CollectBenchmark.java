@@ -0,0 +1,184 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletConfig;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full scrape path: {@link JdbcCollector#collect()} against embedded H2
+ * databases, and text exposition through {@link StreamingMetricsServlet},
+ * as served on `/metrics`, either of the collected result or of the same
+ * queries with `stream: true`, written by {@link JdbcTextEncoder}.
+ *
+ * Run with the `benchmark` profile, which reports allocation rates with
+ * `-prof gc`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class CollectBenchmark {
+
+  @Param({"1000", "10000"})
+  int rows;
+
+  @Param({"10", "1000"})
+  int labelCardinality;
+
+  @Param({"1", "5"})
+  int queries;
+
+  @Param({"1", "4"})
+  int connections;
+
+  private JdbcCollector collector;
+  private StreamingMetricsServlet servlet;
+  private StreamingMetricsServlet streamingServlet;
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private CountingOutputStream output;
+
+  @Setup
+  public void setUp() throws SQLException, ServletException {
+    for (int c = 0; c < connections; c++) {
+      final String url = "jdbc:h2:mem:bench_" + c + ";DB_CLOSE_DELAY=-1";
+      try (Connection connection = DriverManager.getConnection(url, "sa", "");
+           Statement statement = connection.createStatement()) {
+        statement.execute("drop table if exists stats");
+        statement.execute("create table stats(id int primary key, bucket varchar(32), amount double)");
+        statement.execute(
+            "insert into stats select x, 'bucket_' || mod(x, " + labelCardinality + "), x * 1.5 " +
+                "from system_range(1, " + rows + ")");
+      }
+    }
+
+    collector = new JdbcCollector(config(false));
+    servlet = newServlet(collector);
+    streamingServlet = newServlet(new JdbcCollector(config(true)));
+
+    output = new CountingOutputStream();
+    request = (HttpServletRequest) Proxy.newProxyInstance(
+        getClass().getClassLoader(),
+        new Class<?>[]{HttpServletRequest.class},
+        (proxy, method, args) -> method.getName().equals("getMethod") ? "GET" : null);
+    response = (HttpServletResponse) Proxy.newProxyInstance(
+        getClass().getClassLoader(),
+        new Class<?>[]{HttpServletResponse.class},
+        (proxy, method, args) -> method.getName().equals("getWriter") ? newWriter() : null);
+  }
+
+  private String config(boolean stream) {
+    StringBuilder yaml = new StringBuilder("jobs:\n- name: bench\n  connections:\n");
+    for (int c = 0; c < connections; c++) {
+      yaml.append("  - url: 'jdbc:h2:mem:bench_").append(c).append(";DB_CLOSE_DELAY=-1'\n")
+          .append("    username: sa\n")
+          .append("    password: ''\n");
+    }
+    yaml.append("  queries:\n");
+    for (int q = 0; q < queries; q++) {
+      yaml.append("  - name: stats_").append(q).append("\n")
+          .append("    help: Table statistics\n")
+          .append("    stream: ").append(stream).append("\n")
+          .append("    labels: [bucket, id]\n")
+          .append("    values: [amount]\n")
+          .append("    query: select bucket, id, amount from stats\n");
+    }
+    return yaml.toString();
+  }
+
+  private StreamingMetricsServlet newServlet(JdbcCollector jdbcCollector) throws ServletException {
+    CollectorRegistry registry = new CollectorRegistry();
+    jdbcCollector.register(registry);
+    StreamingMetricsServlet metricsServlet = new StreamingMetricsServlet(registry, jdbcCollector);
+    metricsServlet.init((ServletConfig) Proxy.newProxyInstance(
+        getClass().getClassLoader(),
+        new Class<?>[]{ServletConfig.class},
+        (proxy, method, args) -> null));
+    return metricsServlet;
+  }
+
+  /**
+   * The servlet closes its writer, so every request gets a new one, buffered
+   * like a servlet container's response writer.
+   */
+  private PrintWriter newWriter() {
+    return new PrintWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+  }
+
+  @TearDown
+  public void tearDown() throws SQLException {
+    for (int c = 0; c < connections; c++) {
+      try (Connection connection =
+               DriverManager.getConnection("jdbc:h2:mem:bench_" + c + ";DB_CLOSE_DELAY=-1", "sa", "");
+           Statement statement = connection.createStatement()) {
+        statement.execute("shutdown");
+      }
+    }
+  }
+
+  @Benchmark
+  public List<Collector.MetricFamilySamples> collect() {
+    return collector.collect();
+  }
+
+  @Benchmark
+  public long exposition() throws ServletException, IOException {
+    servlet.service(request, response);
+    return output.count;
+  }
+
+  @Benchmark
+  public long streamedExposition() throws ServletException, IOException {
+    streamingServlet.service(request, response);
+    return output.count;
+  }
+
+  /**
+   * Discards what the servlet writes, keeping only a byte count so the
+   * output cannot be optimized away.
+   */
+  private static class CountingOutputStream extends OutputStream {
+    long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+import org.h2.tools.SimpleResultSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Result set to sample conversion, against an in-memory result set so only
+ * the conversion itself is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetSamplesBenchmark {
+
+  @Param({"1000", "50000"})
+  int rows;
+
+  @Param({"1", "4"})
+  int labels;
+
+  private JdbcConfig.Query query;
+  private SimpleResultSet resultSet;
+  private JdbcQueryStats stats;
+
+  @Setup
+  public void setUp() {
+    query = new JdbcConfig.Query();
+    query.name = "table_stats";
+    query.metricName = "jdbc_table_stats";
+    query.help = "Table statistics";
+    stats = new JdbcQueryStats();
+    resultSet = new SimpleResultSet();
+    resultSet.setAutoClose(false);  // Rewound with beforeFirst() for every invocation.
+
+    for (int i = 0; i < labels; i++) {
+      query.labels.add("label_" + i);
+      resultSet.addColumn("LABEL_" + i, Types.VARCHAR, 64, 0);
+    }
+    query.values.add(new JdbcConfig.Value("value"));
+    resultSet.addColumn("VALUE", Types.DOUBLE, 16, 0);
+
+    for (int row = 0; row < rows; row++) {
+      Object[] values = new Object[labels + 1];
+      for (int i = 0; i < labels; i++) {
+        values[i] = "value_" + i + "_" + row;
+      }
+      values[labels] = (double) row;
+      resultSet.addRow(values);
+    }
+  }
+
+  @Benchmark
+  public List<Collector.MetricFamilySamples> current() throws SQLException {
+    resultSet.beforeFirst();
+    return JdbcSamples.getSamples(query, resultSet);
+  }
+
+  /**
+   * Conversion with the series of the previous invocation at hand, as in
+   * every scrape after the first. Run with `-prof gc` to compare allocations.
+   */
+  @Benchmark
+  public List<Collector.MetricFamilySamples> reused() throws SQLException {
+    resultSet.beforeFirst();
+    return JdbcSamples.getSamples(query, resultSet, stats, JdbcConfig.ConstantLabels.NONE);
+  }
+
+  @Benchmark
+  public List<Collector.MetricFamilySamples> legacy() throws SQLException {
+    resultSet.beforeFirst();
+    return legacyGetSamples(query, resultSet);
+  }
+
+  /**
+   * Conversion as it was before columns were resolved once per result set,
+   * kept as the baseline to compare against.
+   */
+  private static List<Collector.MetricFamilySamples> legacyGetSamples(JdbcConfig.Query query,
+                                                                      ResultSet rs)
+      throws SQLException {
+    List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
+
+    final String queryName = String.format("jdbc_%s", query.name);
+    while (rs.next()) {
+      List<String> labelValues =
+          query.labels
+              .stream()
+              .map(label -> {
+                try {
+                  return rs.getString(label);
+                } catch (SQLException e) {
+                  return "";
+                }
+              }).collect(toList());
+
+      List<Collector.MetricFamilySamples.Sample> sample =
+          query.values.stream()
+              .map(value -> {
+                try {
+                  return rs.getFloat(value.name);
+                } catch (SQLException e) {
+                  return null;
+                }
+              })
+              .map(value -> new Collector.MetricFamilySamples.Sample(queryName, query.labels, labelValues, value))
+              .collect(toList());
+
+      samples.addAll(sample);
+    }
+
+    List<Collector.MetricFamilySamples> samplesList = new ArrayList<>();
+    samplesList.add(
+        new Collector.MetricFamilySamples(queryName, Collector.Type.GAUGE, query.help, samples));
+    return samplesList;
+  }
+}
@@ -0,0 +1,54 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * History endpoint, `/history?job=<job>&since=<unix time>`, serving the
+ * results of past runs kept by the configuration's `history`, each sample
+ * with the time it was collected at. Both parameters are optional: every job
+ * is served when `job` is missing, and every kept run when `since` is.
+ */
+class HistoryServlet extends HttpServlet {
+  private final JdbcCollector collector;
+
+  HistoryServlet(JdbcCollector collector) {
+    this.collector = collector;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    final String job = emptyToNull(req.getParameter("job"));
+    final String since = emptyToNull(req.getParameter("since"));
+
+    long sinceMillis = Long.MIN_VALUE;
+    if (since != null) {
+      try {
+        sinceMillis = (long) (Double.parseDouble(since) * 1000.0);
+      } catch (NumberFormatException e) {
+        resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Parameter `since` must be a Unix timestamp in seconds.");
+        return;
+      }
+    }
+
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setContentType(JdbcHistory.CONTENT_TYPE);
+    final Writer writer = new BufferedWriter(resp.getWriter());
+    try {
+      collector.writeHistory(writer, job, sinceMillis);
+    } catch (IllegalArgumentException e) {  // Thrown before anything is written, for an unknown job.
+      resp.reset();
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+      return;
+    }
+    writer.close();
+  }
+
+  private static String emptyToNull(String value) {
+    return value == null || value.isEmpty() ? null : value;
+  }
+}
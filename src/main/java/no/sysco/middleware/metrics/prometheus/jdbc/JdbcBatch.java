@@ -0,0 +1,172 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the queries of a job with `batch: true` against a connection in a
+ * single round trip.
+ */
+class JdbcBatch {
+  private static final Logger LOGGER = Logger.getLogger(JdbcBatch.class.getName());
+
+  /**
+   * Run the queries at `indexes` of a job with `batch: true` in a single
+   * round trip, as one multi-statement execution. When the batch fails, or
+   * the driver does not return a result set per statement, the queries run
+   * one by one instead; if they then succeed, the driver cannot batch, and
+   * the connection is not batched again. Queries that fail on their own are
+   * left out of the batch for a while, so they do not fail it every run.
+   */
+  static void runBatch(JdbcJobRun run,
+                       int connectionIndex,
+                       JdbcConnectionPool.PooledConnection pooled,
+                       List<Integer> indexes) {
+    final JdbcConfig.JdbcJob job = run.job;
+    final JdbcConfig.JdbcConnection connection = job.connections.get(connectionIndex);
+
+    if (indexes.size() > 1 && !run.expired) {
+      final List<JdbcConfig.Query> queries = new ArrayList<>(indexes.size());
+      final List<JdbcQueryStats> stats = new ArrayList<>(indexes.size());
+      long timeout = 0L;
+      boolean unbounded = false;
+      for (int index : indexes) {
+        final JdbcConfig.Query query = job.queries.get(index);
+        queries.add(query);
+        stats.add(connection.stats(query.name));
+        final long queryTimeout = query.timeout > 0L ? query.timeout : connection.timeout;
+        unbounded |= queryTimeout == 0L;
+        timeout = Math.max(timeout, queryTimeout);
+      }
+
+      final long start = System.nanoTime();
+      try (Statement statement = pooled.connection().createStatement()) {
+        statement.setQueryTimeout(run.queryTimeoutSeconds(unbounded ? 0L : timeout));
+        run.running.add(statement);
+        final Collector.MetricFamilySamples[][] results;
+        try {
+          if (run.expired) {
+            throw new SQLTimeoutException("JDBC job deadline expired.");
+          }
+          results = executeBatch(statement, queries, stats, connection.labels);
+        } finally {
+          run.running.remove(statement);
+        }
+        if (results != null) {
+          for (int i = 0; i < indexes.size(); i++) {
+            final int slot = run.slot(connectionIndex, indexes.get(i));
+            run.results.set(slot, results[i]);
+            run.status.set(slot, JdbcJobRun.SUCCESS);
+            stats.get(i).batchSucceeded();
+            if (run.adaptive) {
+              stats.get(i).lastRun = start;
+              stats.get(i).lastResults = results[i];
+            }
+          }
+          return;
+        }
+        LOGGER.info(String.format("Driver of %s returned fewer result sets than statements, " +
+            "queries of job %s are not batched.", connection.url, job.name));
+        connection.batchUnsupported = true;
+      } catch (SQLException e) {
+        if (e instanceof SQLTimeoutException || run.expired) {
+          LOGGER.warning(String.format("Batch of queries of job %s timed out on %s.", job.name, connection.url));
+          for (int index : indexes) {
+            run.status.set(run.slot(connectionIndex, index), JdbcJobRun.TIMEOUT);
+          }
+          return;
+        }
+        if (JdbcConnectionPool.isConnectionError(e)) {
+          pooled.invalidate();
+          connection.breaker.failure(e);
+          for (int index : indexes) {
+            run.status.set(run.slot(connectionIndex, index), JdbcJobRun.ERROR);
+          }
+          return;
+        }
+        LOGGER.log(Level.FINE, String.format("Error executing batch of queries of job %s on %s, " +
+            "running them one by one.", job.name, connection.url), e);
+        boolean succeeded = true;
+        for (int index : indexes) {
+          final JdbcConfig.Query query = job.queries.get(index);
+          final JdbcQueryStats queryStats = connection.stats(query.name);
+          if (!JdbcLanes.runQuery(run, run.slot(connectionIndex, index), pooled, connection, query, queryStats, null)) {
+            succeeded = false;
+            if (!run.expired) {
+              LOGGER.info(String.format("Query %s of job %s failed on %s, it is not batched for a while.",
+                  query.name, job.name, connection.url));
+              queryStats.batchFailed();
+            }
+          }
+        }
+        if (succeeded && !run.expired) {
+          LOGGER.info(String.format("Driver of %s failed a batch its statements did not, " +
+              "queries of job %s are not batched.", connection.url, job.name));
+          connection.batchUnsupported = true;
+        }
+        return;
+      }
+    }
+
+    for (int index : indexes) {
+      final int slot = run.slot(connectionIndex, index);
+      if (run.expired) {
+        run.status.set(slot, JdbcJobRun.TIMEOUT);
+        continue;
+      }
+      final JdbcConfig.Query query = job.queries.get(index);
+      JdbcLanes.runQuery(run, slot, pooled, connection, query, connection.stats(query.name), null);
+    }
+  }
+
+  /**
+   * Execute `queries` as a single multi-statement batch and convert each
+   * result set with the query at the same position, timing each query up to
+   * the end of its result set. Update counts are skipped. Returns null when
+   * the driver returned another number of result sets than there are
+   * queries, i.e. it does not support multi-result execution.
+   */
+  static Collector.MetricFamilySamples[][] executeBatch(Statement statement,
+                                                        List<JdbcConfig.Query> queries,
+                                                        List<JdbcQueryStats> stats,
+                                                        JdbcConfig.ConstantLabels constants)
+      throws SQLException {
+    final Collector.MetricFamilySamples[][] results = new Collector.MetricFamilySamples[queries.size()][];
+    final StringBuilder sql = new StringBuilder();
+    for (JdbcConfig.Query query : queries) {
+      if (sql.length() > 0) {
+        sql.append(";\n");
+      }
+      sql.append(query.query.trim().replaceAll(";+$", ""));
+    }
+
+    long start = System.nanoTime();
+    boolean isResultSet = statement.execute(sql.toString());
+    int i = 0;
+    while (isResultSet || statement.getUpdateCount() != -1) {
+      if (isResultSet) {
+        if (i == queries.size()) {
+          return null;
+        }
+        try (ResultSet rs = statement.getResultSet()) {
+          results[i] = JdbcSamples.getSamples(queries.get(i), rs, stats.get(i), constants)
+              .toArray(new Collector.MetricFamilySamples[0]);
+        }
+        final long end = System.nanoTime();
+        stats.get(i).observe(end - start);
+        start = end;
+        i++;
+      }
+      isResultSet = statement.getMoreResults();
+    }
+    return i == queries.size() ? results : null;
+  }
+}
@@ -0,0 +1,147 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps scrapes away from a database that cannot be reached. After a
+ * connection failure the breaker opens, and queries against the database
+ * are skipped instead of waiting for the driver's connect timeout. A single
+ * background probe tries to reconnect, backing off exponentially, and closes
+ * the breaker once it succeeds.
+ */
+class JdbcCircuitBreaker {
+  private static final Logger LOGGER = Logger.getLogger(JdbcCircuitBreaker.class.getName());
+
+  private static final ScheduledExecutorService PROBES =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jdbc-circuit-probe");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  /**
+   * Attempt to reach the database, e.g. by borrowing a pooled connection.
+   */
+  interface Probe {
+    void run() throws SQLException;
+  }
+
+  private final String url;
+  private final Settings settings;
+  private final Probe probe;
+  final LongAdder skipped = new LongAdder();
+
+  private volatile boolean up = true;
+  private long backoff;
+  private ScheduledFuture<?> pending;
+  private boolean closed = false;
+
+  JdbcCircuitBreaker(String url, Settings settings, Probe probe) {
+    this.url = url;
+    this.settings = settings;
+    this.probe = probe;
+  }
+
+  /**
+   * Whether queries may run against the database. Counts the skip when not.
+   */
+  boolean allow() {
+    if (up || !settings.enabled) {
+      return true;
+    }
+    skipped.increment();
+    return false;
+  }
+
+  boolean isUp() {
+    return up;
+  }
+
+  /**
+   * A connection was obtained, so the database is reachable again when the
+   * breaker is disabled and has no probe running.
+   */
+  void success() {
+    if (up) {
+      return;
+    }
+    synchronized (this) {
+      if (!up && pending == null) {
+        LOGGER.info(String.format("Connection to %s recovered.", url));
+        up = true;
+      }
+    }
+  }
+
+  /**
+   * A connection could not be obtained, or was lost. Only the first failure
+   * is logged, later ones are reported by the probe at a finer level.
+   */
+  synchronized void failure(SQLException e) {
+    if (!up || closed) {
+      LOGGER.log(Level.FINE, String.format("Connection to %s still failing.", url), e);
+      return;
+    }
+    up = false;
+    if (!settings.enabled) {
+      LOGGER.log(Level.SEVERE, String.format("Error connecting to %s.", url), e);
+      return;
+    }
+    backoff = settings.backoff;
+    LOGGER.log(
+        Level.SEVERE,
+        String.format("Error connecting to %s, skipping it until it recovers, retrying in %d ms.", url, backoff),
+        e);
+    pending = PROBES.schedule(this::probe, backoff, TimeUnit.MILLISECONDS);
+  }
+
+  private void probe() {
+    SQLException failure = null;
+    try {
+      probe.run();
+    } catch (SQLException e) {
+      failure = e;
+    }
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      if (failure == null) {
+        LOGGER.info(String.format("Connection to %s recovered.", url));
+        pending = null;
+        up = true;
+        return;
+      }
+      backoff = Math.min(backoff * 2, settings.maxBackoff);
+      LOGGER.log(Level.FINE, String.format("Connection to %s still failing, retrying in %d ms.", url, backoff), failure);
+      pending = PROBES.schedule(this::probe, backoff, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stop probing, once the connection is no longer used.
+   */
+  synchronized void close() {
+    closed = true;
+    if (pending != null) {
+      pending.cancel(false);
+      pending = null;
+    }
+  }
+
+  /**
+   * Settings of a connection's `circuit_breaker` configuration.
+   */
+  static class Settings {
+    boolean enabled = true;
+    long backoff = TimeUnit.SECONDS.toMillis(1);
+    long maxBackoff = TimeUnit.MINUTES.toMillis(5);
+  }
+}
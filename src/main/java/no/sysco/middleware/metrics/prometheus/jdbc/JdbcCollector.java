@@ -2,20 +2,34 @@ package no.sysco.middleware.metrics.prometheus.jdbc;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import org.yaml.snakeyaml.Yaml;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Prometheus JDBC Collector
  */
-public class JdbcCollector extends Collector implements Collector.Describable {
+public class JdbcCollector extends Collector implements Collector.Describable, AutoCloseable {
   private static final Counter configReloadSuccess =
       Counter.build()
           .name("jdbc_config_reload_success_total")
@@ -26,10 +40,36 @@ public class JdbcCollector extends Collector implements Collector.Describable {
           .name("jdbc_config_reload_failure_total")
           .help("Number of times configuration have failed to be reloaded.").register();
 
+  private static final Gauge configReloadDuration =
+      Gauge.build()
+          .name("jdbc_config_reload_duration_seconds")
+          .help("Time the last configuration reload took, in seconds.").register();
+
+  private static final Gauge configReloadJobsChanged =
+      Gauge.build()
+          .name("jdbc_config_reload_jobs_changed")
+          .help("Number of jobs added, changed or removed by the last configuration reload.").register();
+
+  private static final Counter scrapesShared =
+      Counter.build()
+          .name("jdbc_scrapes_shared_total")
+          .help("Number of scrapes served by a collection already in progress, or completed within `min_interval`.").register();
+
   private static final Logger LOGGER = Logger.getLogger(JdbcCollector.class.getName());
 
-  private JdbcConfig config;
+  /**
+   * Longest a scrape waits for a collection in progress, unless the
+   * `scrape_timeout` is longer. A collection taking longer is assumed stuck.
+   */
+  private static final long MAX_SHARED_WAIT_MILLIS = 60_000L;
+
+  private volatile JdbcConfig config;
   private File configFile;
+  private boolean started = false;
+  private Thread watcher;
+  private final AtomicReference<CompletableFuture<Collected>> inFlight = new AtomicReference<>();
+  private volatile Collected lastCollection;
+  private volatile CompletableFuture<List<String>> warmUp;
 
   JdbcCollector(File in) throws FileNotFoundException {
     configFile = in;
@@ -43,6 +83,86 @@ public class JdbcCollector extends Collector implements Collector.Describable {
     config = new JdbcConfig((Map<String, Object>) new Yaml().load(yamlConfig));
   }
 
+  /**
+   * Whether the connections of the configuration loaded at startup have been
+   * warmed up, whether or not problems were found.
+   */
+  boolean isReady() {
+    final CompletableFuture<List<String>> current = warmUp;
+    return current != null && current.isDone();
+  }
+
+  /**
+   * Problems found while warming up, once ready.
+   */
+  List<String> warmUpProblems() {
+    return isReady() ? warmUp.join() : Collections.emptyList();
+  }
+
+  /**
+   * Warm up connections in the background, start collecting jobs that
+   * define an `interval` in the background, so scrapes are served from their
+   * latest results, and start watching the configuration file for changes.
+   */
+  synchronized JdbcCollector start() {
+    started = true;
+    if (warmUp == null) {
+      warmUp = config.warmUp();
+    }
+    config.start();
+    if (configFile != null && watcher == null) {
+      watch();
+    }
+    return this;
+  }
+
+  /**
+   * Reload the configuration when its file changes, off the scrape path.
+   * The whole directory is watched, as the file may be replaced through a
+   * symbolic link rather than modified in place.
+   */
+  private void watch() {
+    final Path directory = configFile.getAbsoluteFile().toPath().getParent();
+    final WatchService watchService;
+    try {
+      watchService = directory.getFileSystem().newWatchService();
+      directory.register(
+          watchService,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Configuration file cannot be watched, changes will not be reloaded.", e);
+      return;
+    }
+
+    watcher = new Thread(() -> {
+      try {
+        while (true) {
+          final WatchKey key = watchService.take();
+          key.pollEvents();
+          if (configFile.lastModified() != config.lastUpdate()) {
+            LOGGER.fine("Configuration file changed, reloading...");
+            reloadConfig();
+          }
+          if (!key.reset()) {
+            LOGGER.warning("Configuration directory is no longer accessible, changes will not be reloaded.");
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        try {
+          watchService.close();
+        } catch (IOException e) {
+          LOGGER.log(Level.FINE, "Error closing configuration watcher.", e);
+        }
+      }
+    }, "jdbc-config-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
   @Override
   public List<MetricFamilySamples> describe() {
     List<MetricFamilySamples> sampleFamilies = new ArrayList<>();
@@ -50,35 +170,281 @@ public class JdbcCollector extends Collector implements Collector.Describable {
         new MetricFamilySamples(
             "jdbc_scrape_duration_seconds",
             Type.GAUGE,
-            "Time this JDBC scrape took, in seconds.",
+            "Time this JDBC job took to run, in seconds.",
             new ArrayList<>()));
     sampleFamilies.add(
         new MetricFamilySamples(
             "jdbc_scrape_error",
             Type.GAUGE,
-            "Non-zero if this scrape failed.",
+            "Non-zero if this JDBC job failed.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_query_timeout",
+            Type.GAUGE,
+            "Non-zero if this query timed out, or was skipped because its job ran out of time.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_query_error",
+            Type.GAUGE,
+            "Non-zero if this query failed.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_query_stream_error",
+            Type.GAUGE,
+            "Non-zero if this streamed query failed, its samples may be incomplete.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_query_duration_seconds",
+            Type.HISTOGRAM,
+            "Time taken to execute a query and read its result set, in seconds.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_query_rows",
+            Type.GAUGE,
+            "Rows returned by the last execution of a query.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_query_samples",
+            Type.GAUGE,
+            "Samples produced by the last execution of a query.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_query_errors_total",
+            Type.COUNTER,
+            "Failed query executions, by SQL state.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_query_truncated_total",
+            Type.COUNTER,
+            "Executions of a query whose results were cut short by one of its limits.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_query_cache_hits_total",
+            Type.COUNTER,
+            "Executions of a cached query served from the cache.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_query_cache_misses_total",
+            Type.COUNTER,
+            "Executions of a cached query that found nothing in the cache.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_query_cache_age_seconds",
+            Type.GAUGE,
+            "Age of the cached results of a query, in seconds.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_query_effective_interval_seconds",
+            Type.GAUGE,
+            "Time between runs of a query of a scheduled job, its interval unless stretched because it runs slow.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_connection_acquire_seconds",
+            Type.HISTOGRAM,
+            "Time taken to borrow a connection from the pool, in seconds.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_connection_errors_total",
+            Type.COUNTER,
+            "Failures to borrow or open a connection, by SQL state.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_duplicate_samples_total",
+            Type.COUNTER,
+            "Samples dropped because an earlier sample of the same family had the same labels.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_samples_over_budget_total",
+            Type.COUNTER,
+            "Query samples dropped because a scrape reached `max_total_samples`.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_up",
+            Type.GAUGE,
+            "Whether the database was reachable the last time it was tried.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_connection_skipped_total",
+            Type.COUNTER,
+            "Times the queries of a connection were skipped while its database was unreachable.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_pool_active_connections",
+            Type.GAUGE,
+            "Connections currently borrowed from the pool.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_pool_idle_connections",
+            Type.GAUGE,
+            "Connections currently idle in the pool.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_pool_waits_total",
+            Type.COUNTER,
+            "Number of times a scrape had to wait for a pooled connection.",
+            new ArrayList<>()));
+    sampleFamilies.add(
+        new MetricFamilySamples(
+            "jdbc_pool_connection_create_seconds",
+            Type.SUMMARY,
+            "Time spent opening new pooled connections, in seconds.",
             new ArrayList<>()));
     return sampleFamilies;
   }
 
+  /**
+   * Scrapes arriving while a collection is in progress wait for it and share
+   * its result, and so do scrapes arriving within `min_interval` of the last
+   * collection, so concurrent scrapers do not multiply the database load.
+   */
   @Override
   public List<MetricFamilySamples> collect() {
-    if (configFile != null) {
-      long mtime = configFile.lastModified();
-      if (mtime > config.lastUpdate()) {
-        LOGGER.fine("Configuration file changed, reloading...");
-        reloadConfig();
+    final JdbcConfig current = config;
+    final Collected last = lastCollection;
+    if (last != null && last.isFresh(current)) {
+      scrapesShared.inc();
+      return new ArrayList<>(last.mfsList);
+    }
+
+    final CompletableFuture<Collected> mine = new CompletableFuture<>();
+    final CompletableFuture<Collected> running = inFlight.compareAndSet(null, mine) ? mine : inFlight.get();
+    if (running != mine && running != null) {
+      try {
+        final Collected shared =
+            running.get(Math.max(current.scrapeTimeout(), MAX_SHARED_WAIT_MILLIS), TimeUnit.MILLISECONDS);
+        scrapesShared.inc();
+        return new ArrayList<>(shared.mfsList);
+      } catch (ExecutionException e) {
+        // The collection we waited for failed, try on our own.
+        return collect(current);
+      } catch (TimeoutException e) {
+        LOGGER.warning("Collection in progress did not complete in time, collecting on our own.");
+        return collect(current);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return collect(current);
       }
     }
+    if (running == null) {  // Finished between the two reads, run our own.
+      return collect(current);
+    }
+
+    try {
+      final Collected collection = new Collected(current, collect(current));
+      lastCollection = collection;
+      mine.complete(collection);
+      return new ArrayList<>(collection.mfsList);
+    } catch (RuntimeException e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.compareAndSet(mine, null);
+    }
+  }
 
-    return config.runJobs();
+  /**
+   * Run a single job, or jobs against a single connection, on demand. Used
+   * by the probe endpoint, so targets can be scraped separately.
+   */
+  List<MetricFamilySamples> probe(String job, String target) {
+    return config.probe(job, target);
   }
 
-  void reloadConfig() {
+  /**
+   * Write the results of past runs of a job, or of every job when null,
+   * kept by the configuration's `history`.
+   */
+  void writeHistory(Writer writer, String job, long since) throws IOException {
+    config.writeHistory(writer, job, since);
+  }
+
+  /**
+   * Write the samples of queries with `stream` enabled, of the job named
+   * `job` and against connections to `target`, or all when null.
+   */
+  void stream(JdbcTextEncoder encoder, String job, String target) throws IOException {
+    config.stream(encoder, job, target);
+  }
+
+  private static List<MetricFamilySamples> collect(JdbcConfig current) {
+    List<MetricFamilySamples> mfsList = current.runJobs();
+    mfsList.addAll(current.querySamples());
+    mfsList.addAll(current.poolSamples());
+    return mfsList;
+  }
+
+  /**
+   * Result of a collection, shared with scrapes that arrive while it runs or
+   * within the configuration's `min_interval` after it completed.
+   */
+  private static class Collected {
+    final JdbcConfig config;
+    final long completed = System.nanoTime();
+    final List<MetricFamilySamples> mfsList;
+
+    Collected(JdbcConfig config, List<MetricFamilySamples> mfsList) {
+      this.config = config;
+      this.mfsList = Collections.unmodifiableList(mfsList);
+    }
+
+    boolean isFresh(JdbcConfig current) {
+      return config == current
+          && current.minInterval() > 0L
+          && System.nanoTime() - completed < TimeUnit.MILLISECONDS.toNanos(current.minInterval());
+    }
+  }
+
+  /**
+   * Stop watching the configuration file, and close the pools, schedules and
+   * executors of the current configuration.
+   */
+  @Override
+  public synchronized void close() {
+    if (watcher != null) {
+      watcher.interrupt();
+      watcher = null;
+    }
+    config.close();
+  }
+
+  synchronized void reloadConfig() {
+    final long start = System.nanoTime();
     try (FileReader fr = new FileReader(configFile)) {
-      config =
-          new JdbcConfig((Map<String, Object>) new Yaml().load(fr), configFile.lastModified());
+      final JdbcConfig previous = config;
+      final JdbcConfig next =
+          new JdbcConfig(
+              (Map<String, Object>) new Yaml().load(fr), configFile.lastModified(), previous);
+      if (started) {
+        // Scrapes keep using the previous configuration until this one is warmed up.
+        next.warmUp().join();
+        next.start();
+      }
+      config = next;
+      previous.close();
       configReloadSuccess.inc();
+      configReloadJobsChanged.set(next.changedJobs());
+      configReloadDuration.set((System.nanoTime() - start) / 1.0E9);
     } catch (Exception e) {
       LOGGER.severe("Configuration reload failed: " + e.toString());
       configReloadFailure.inc();
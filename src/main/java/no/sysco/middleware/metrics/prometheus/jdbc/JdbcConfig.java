@@ -1,39 +1,106 @@
 package no.sysco.middleware.metrics.prometheus.jdbc;
 
 import io.prometheus.client.Collector;
+import io.prometheus.client.Histogram;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.io.IOException;
+import java.io.Writer;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Stream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
 /**
  *
  */
-class JdbcConfig {
+class JdbcConfig implements AutoCloseable {
   private static final Logger LOGGER = Logger.getLogger(JdbcConfig.class.getName());
 
+  private static final int DEFAULT_STREAM_FETCH_SIZE = 1000;
+
+  private static final int MAX_WARM_UP_THREADS = 8;
+
+  private static final long CLOSE_GRACE_MILLIS = 30_000L;
+
+  private static final LongAdder DUPLICATE_SAMPLES = new LongAdder();
+  private static final LongAdder OVER_BUDGET_SAMPLES = new LongAdder();
+
+  // Label added to the connections of a job that their `labels` do not tell apart.
+  private static final String CONNECTION_LABEL = "connection";
+
+  private static final String COUNTER_SUFFIX = "_total";
+
+  private static final Pattern DURATION_PATTERN = Pattern.compile("(\\d+)(ms|s|m|h|d)?");
+
   private List<JdbcJob> jobs = new ArrayList<>();
   private long lastUpdate = 0L;
+  private JdbcScheduler scheduler;
+  private String executorKind = JdbcExecutors.PLATFORM;
+  private int parallelism = 1;
+  private ExecutorService executor;
+  private boolean executorHandedOver = false;
+  private final Set<JdbcJobRun> inProgress = ConcurrentHashMap.newKeySet();
+  private volatile boolean closed = false;
+  private long scrapeTimeout = 0L;
+  private long minInterval = 0L;
+  private double jitter = 0.0;
+  private double stretchThreshold = 0.0;
+  private int maxStretch = 10;
+  private int cacheSize = 1000;
+  private final Limits limits = new Limits();
+  private long maxTotalSamples = 0L;
+  private final Set<String> queryFamilies = new HashSet<>();
+  private JdbcResultCache cache;
+  private JdbcLanes lanes;
+  private JdbcPusher pusher;
+  private JdbcHistory history;
+  private int changedJobs;
+  private final Map<String, List<Collector.MetricFamilySamples>> carried = new HashMap<>();
 
   JdbcConfig(Map<String, Object> yamlConfig, long lastUpdate) {
-    this(yamlConfig);
-    this.lastUpdate = lastUpdate;
+    this(yamlConfig, lastUpdate, null);
   }
 
   JdbcConfig(Map<String, Object> yamlConfig) {
+    this(yamlConfig, 0L, null);
+  }
+
+  /**
+   * Build a configuration, taking over the jobs, connections and queries of
+   * a `previous` configuration that did not change. Those keep their pools,
+   * prepared statements and latest results.
+   */
+  JdbcConfig(Map<String, Object> yamlConfig, long lastUpdate, JdbcConfig previous) {
+    this.lastUpdate = lastUpdate;
+
     if (yamlConfig == null) {  // Yaml config empty, set config to empty map.
       yamlConfig = new HashMap<>();
       LOGGER.warning("JDBC Config file is empty.");
@@ -49,6 +116,57 @@ class JdbcConfig {
       }
     }
 
+    if (yamlConfig.containsKey("executor")) {
+      executorKind = (String) yamlConfig.get("executor");
+      if (!JdbcExecutors.isValidKind(executorKind)) {
+        throw new IllegalArgumentException("JDBC Config `executor` must be `platform` or `virtual`.");
+      }
+    }
+
+    if (yamlConfig.containsKey("parallelism")) {
+      parallelism = parseParallelism(yamlConfig.get("parallelism"));
+    }
+
+    if (yamlConfig.containsKey("scrape_timeout")) {
+      scrapeTimeout = parseDuration(yamlConfig.get("scrape_timeout"));
+    }
+
+    if (yamlConfig.containsKey("min_interval")) {
+      minInterval = parseDuration(yamlConfig.get("min_interval"));
+    }
+
+    if (yamlConfig.containsKey("jitter")) {
+      jitter = parseFraction(yamlConfig.get("jitter"), "jitter");
+    }
+
+    if (yamlConfig.containsKey("stretch_threshold")) {
+      stretchThreshold = parseFraction(yamlConfig.get("stretch_threshold"), "stretch_threshold");
+    }
+
+    if (yamlConfig.containsKey("max_stretch")) {
+      maxStretch = (Integer) yamlConfig.get("max_stretch");
+      if (maxStretch < 1) {
+        throw new IllegalArgumentException("JDBC Config `max_stretch` must be at least 1.");
+      }
+    }
+
+    parseLimits(yamlConfig, limits);
+
+    if (yamlConfig.containsKey("max_total_samples")) {
+      maxTotalSamples = parseLimit(yamlConfig.get("max_total_samples"), "max_total_samples");
+    }
+
+    pusher = JdbcPusher.parse(yamlConfig);
+
+    history = JdbcHistory.parse(yamlConfig);
+
+    if (yamlConfig.containsKey("cache_size")) {
+      cacheSize = (Integer) yamlConfig.get("cache_size");
+      if (cacheSize < 1) {
+        throw new IllegalArgumentException("JDBC Config `cache_size` must be at least 1.");
+      }
+    }
+
     if (yamlConfig.containsKey("jobs")) {
       final List<Map<String, Object>> jobList =
           Optional.ofNullable((List<Map<String, Object>>) yamlConfig.get("jobs"))
@@ -58,6 +176,7 @@ class JdbcConfig {
 
       for (Map<String, Object> jobObject : jobList) {
         JdbcJob job = new JdbcJob();
+        job.definition = jobObject;
         jobs.add(job);
 
         if (jobObject.containsKey("name")) {
@@ -67,6 +186,35 @@ class JdbcConfig {
               "This value is required to execute collector.");
         }
 
+        if (jobObject.containsKey("interval")) {
+          job.interval = parseDuration(jobObject.get("interval"));
+          if (job.interval <= 0L) {
+            throw new IllegalArgumentException("JDBC Job `interval` must be greater than zero.");
+          }
+        }
+
+        if (jobObject.containsKey("push")) {
+          job.push = (Boolean) jobObject.get("push");
+          if (job.push && pusher == null) {
+            throw new IllegalArgumentException("JDBC Job cannot be pushed without a `push` section.");
+          }
+          if (job.push && job.interval == 0L) {
+            throw new IllegalArgumentException("JDBC Job cannot be pushed without an `interval`.");
+          }
+        }
+
+        if (jobObject.containsKey("batch")) {
+          job.batch = (Boolean) jobObject.get("batch");
+        }
+
+        if (jobObject.containsKey("parallelism")) {
+          job.parallelism = parseParallelism(jobObject.get("parallelism"));
+        }
+
+        if (jobObject.containsKey("timeout")) {
+          job.timeout = parseDuration(jobObject.get("timeout"));
+        }
+
         if (jobObject.containsKey("connections")) {
           final List<Map<String, Object>> connections =
               Optional.ofNullable((List<Map<String, Object>>) jobObject.get("connections"))
@@ -76,6 +224,8 @@ class JdbcConfig {
 
           for (Map<String, Object> connObject : connections) {
             JdbcConnection connection = new JdbcConnection();
+            connection.definition = connObject;
+            connection.jobName = job.name;
             job.connections.add(connection);
 
             if (connObject.containsKey("url")) {
@@ -98,6 +248,88 @@ class JdbcConfig {
               throw new IllegalArgumentException("JDBC Connection `password` is not defined. " +
                   "This value is required to execute collector.");
             }
+
+            if (connObject.containsKey("timeout")) {
+              connection.timeout = parseDuration(connObject.get("timeout"));
+            }
+
+            if (connObject.containsKey("labels")) {
+              final Map<String, Object> labels =
+                  Optional.ofNullable((Map<String, Object>) connObject.get("labels"))
+                      .orElse(new HashMap<>());
+              final List<String> names = new ArrayList<>();
+              final List<String> values = new ArrayList<>();
+              for (Map.Entry<String, Object> label : labels.entrySet()) {
+                names.add(label.getKey());
+                values.add(String.valueOf(label.getValue()));
+              }
+              connection.labels = new ConstantLabels(names, values);
+            }
+
+            if (connObject.containsKey("max_concurrency")) {
+              connection.maxConcurrency = (Integer) connObject.get("max_concurrency");
+              if (connection.maxConcurrency < 1) {
+                throw new IllegalArgumentException("JDBC Connection `max_concurrency` must be at least 1.");
+              }
+            }
+
+            JdbcConnectionPool.Settings poolSettings = new JdbcConnectionPool.Settings();
+            poolSettings.maxSize = connection.maxConcurrency;
+            if (connObject.containsKey("pool")) {
+              final Map<String, Object> poolObject =
+                  Optional.ofNullable((Map<String, Object>) connObject.get("pool"))
+                      .orElse(new HashMap<>());
+
+              if (poolObject.containsKey("min_size")) {
+                poolSettings.minSize = (Integer) poolObject.get("min_size");
+              }
+              if (poolObject.containsKey("max_size")) {
+                poolSettings.maxSize = (Integer) poolObject.get("max_size");
+              }
+              if (poolObject.containsKey("idle_timeout")) {
+                poolSettings.idleTimeout = parseDuration(poolObject.get("idle_timeout"));
+              }
+              if (poolObject.containsKey("max_lifetime")) {
+                poolSettings.maxLifetime = parseDuration(poolObject.get("max_lifetime"));
+              }
+              if (poolObject.containsKey("borrow_timeout")) {
+                poolSettings.borrowTimeout = parseDuration(poolObject.get("borrow_timeout"));
+              }
+              if (poolObject.containsKey("validation_query")) {
+                poolSettings.validationQuery = (String) poolObject.get("validation_query");
+              }
+
+              if (poolSettings.maxSize < 1) {
+                throw new IllegalArgumentException("JDBC Connection pool `max_size` must be at least 1.");
+              }
+              if (poolSettings.minSize < 0 || poolSettings.minSize > poolSettings.maxSize) {
+                throw new IllegalArgumentException("JDBC Connection pool `min_size` must be between 0 and `max_size`.");
+              }
+              if (poolSettings.maxSize < connection.maxConcurrency) {
+                throw new IllegalArgumentException("JDBC Connection pool `max_size` must not be lower than `max_concurrency`.");
+              }
+            }
+            connection.poolSettings = poolSettings;
+
+            if (connObject.containsKey("circuit_breaker")) {
+              final Map<String, Object> breakerObject =
+                  Optional.ofNullable((Map<String, Object>) connObject.get("circuit_breaker"))
+                      .orElse(new HashMap<>());
+              if (breakerObject.containsKey("enabled")) {
+                connection.breakerSettings.enabled = (Boolean) breakerObject.get("enabled");
+              }
+              if (breakerObject.containsKey("backoff")) {
+                connection.breakerSettings.backoff = parseDuration(breakerObject.get("backoff"));
+              }
+              if (breakerObject.containsKey("max_backoff")) {
+                connection.breakerSettings.maxBackoff = parseDuration(breakerObject.get("max_backoff"));
+              }
+              if (connection.breakerSettings.backoff <= 0L
+                  || connection.breakerSettings.maxBackoff < connection.breakerSettings.backoff) {
+                throw new IllegalArgumentException(
+                    "JDBC Connection circuit breaker `backoff` must be greater than zero and not above `max_backoff`.");
+              }
+            }
           }
         } else {
           throw new IllegalArgumentException("JDBC Job does not have a `connections` defined. " +
@@ -113,10 +345,12 @@ class JdbcConfig {
 
           for (Map<String, Object> queryObject : queriesList) {
             Query query = new Query();
+            query.definition = queryObject;
             job.queries.add(query);
 
             if (queryObject.containsKey("name")) {
               query.name = (String) queryObject.get("name");
+              query.metricName = "jdbc_" + query.name;
             } else {
               throw new IllegalArgumentException("JDBC Query does not have a `name` defined. " +
                   "This value is required to execute collector.");
@@ -126,7 +360,40 @@ class JdbcConfig {
               query.help = (String) queryObject.get("help");
             }
 
-            if (queryObject.containsKey("labels")) {
+            if (queryObject.containsKey("timeout")) {
+              query.timeout = parseDuration(queryObject.get("timeout"));
+            }
+
+            if (queryObject.containsKey("cache_ttl")) {
+              query.cacheTtl = parseDuration(queryObject.get("cache_ttl"));
+            }
+
+            if (queryObject.containsKey("fetch_size")) {
+              query.fetchSize = (Integer) queryObject.get("fetch_size");
+              if (query.fetchSize < 0) {
+                throw new IllegalArgumentException("JDBC Query `fetch_size` must not be negative.");
+              }
+            }
+
+            query.limits = new Limits(limits);
+            parseLimits(queryObject, query.limits);
+
+            if (queryObject.containsKey("stream")) {
+              query.stream = (Boolean) queryObject.get("stream");
+              if (query.stream && query.cacheTtl > 0L) {
+                throw new IllegalArgumentException("JDBC Query cannot have `stream` and a `cache_ttl` at the same time.");
+              }
+              if (query.stream && job.interval > 0L) {
+                throw new IllegalArgumentException("JDBC Query cannot be streamed in a job with an `interval`.");
+              }
+              if (query.stream && query.fetchSize == 0) {
+                query.fetchSize = DEFAULT_STREAM_FETCH_SIZE;
+              }
+            }
+
+            if ("*".equals(queryObject.get("labels"))) {
+              query.allLabels = true;
+            } else if (queryObject.containsKey("labels")) {
               final List<Object> labels =
                   Optional.ofNullable((List<Object>) queryObject.get("labels"))
                       .orElse(new ArrayList<>());
@@ -135,6 +402,8 @@ class JdbcConfig {
                 query.labels.add((String) label);
               }
             }
+            // Shared by every sample of this query, so it must not change after parsing.
+            query.labels = Collections.unmodifiableList(query.labels);
 
             if (queryObject.containsKey("values")) {
               final List<Object> values =
@@ -143,14 +412,46 @@ class JdbcConfig {
                           new IllegalArgumentException("JDBC Query does not have `values` defined. " +
                               "This value is required to execute collector."));
 
-              for (Object value : values) {
-                query.values.add((String) value);
+              for (Object valueObject : values) {
+                query.values.add(parseValue(valueObject));
+              }
+
+              if (query.values.isEmpty()) {
+                throw new IllegalArgumentException("JDBC Query does not have `values` defined. " +
+                    "This value is required to execute collector.");
+              }
+
+              // All values are samples of the query's metric family, so they must agree on its type.
+              query.type = query.values.get(0).type;
+              for (Value value : query.values) {
+                if (value.type != query.type) {
+                  throw new IllegalArgumentException(
+                      String.format("JDBC Query %s has values of different types. " +
+                          "Values of a query must share the same `type`.", query.name));
+                }
+              }
+              // Counter samples get the suffix on exposition, so the family is named without it.
+              if (query.type == Collector.Type.COUNTER && query.metricName.endsWith(COUNTER_SUFFIX)) {
+                query.metricName =
+                    query.metricName.substring(0, query.metricName.length() - COUNTER_SUFFIX.length());
               }
             } else {
               throw new IllegalArgumentException("JDBC Query does not have `values` defined. " +
                   "This value is required to execute collector.");
             }
 
+            // The samples of each value of a row would otherwise have the same labels.
+            if (queryObject.containsKey("value_label")) {
+              query.valueLabel = (String) queryObject.get("value_label");
+              if (query.valueLabel == null || query.valueLabel.isEmpty()) {
+                throw new IllegalArgumentException("JDBC Query `value_label` must not be empty.");
+              }
+            }
+            if (query.values.size() > 1 && query.labels.contains(query.valueLabel)) {
+              throw new IllegalArgumentException(
+                  String.format("JDBC Query %s has a label `%s`, which is its `value_label`.", query.name, query.valueLabel));
+            }
+
             if (queryObject.containsKey("query") && queryObject.containsKey("query_ref")) {
               throw new IllegalArgumentException("JDBC Query cannot have a `query` value and a `query_ref` at the same time.");
             }
@@ -178,170 +479,1246 @@ class JdbcConfig {
           "It will not collect any metric samples.");
     }
 
+    // Streamed families are written on their own, so they cannot be merged with collected ones.
+    final Set<String> streamed = new HashSet<>();
+    final Set<String> collected = new HashSet<>();
+    for (JdbcJob job : jobs) {
+      for (Query query : job.queries) {
+        (query.stream ? streamed : collected).add(query.metricName);
+      }
+    }
+    streamed.retainAll(collected);
+    if (!streamed.isEmpty()) {
+      throw new IllegalArgumentException(
+          String.format("JDBC Query %s is streamed by one query and not by another. " +
+              "Queries sharing a name must agree on `stream`.", streamed.iterator().next()));
+    }
 
+    for (JdbcJob job : jobs) {
+      distinguishConnections(job);
+    }
+
+    for (JdbcJob job : jobs) {
+      for (JdbcConnection connection : job.connections) {
+        for (Query query : job.queries) {
+          for (String name : connection.labels.names) {
+            if (query.labels.contains(name) || (query.values.size() > 1 && query.valueLabel.equals(name))) {
+              throw new IllegalArgumentException(
+                  String.format("JDBC Connection label `%s` is also a label of query %s.", name, query.name));
+            }
+          }
+        }
+      }
+    }
+
+    if (previous != null) {
+      adopt(previous);
+    }
+
+    // Pools and executors are only created once the whole configuration is known to be valid.
+    if (cache == null) {
+      cache = new JdbcResultCache(cacheSize);
+    }
+    if (parallelism > 1 && executor == null) {
+      executor = JdbcExecutors.newExecutor(executorKind, parallelism, "jdbc-executor");
+    }
+    lanes = new JdbcLanes(executor, cache, stretchThreshold, maxStretch);
+    for (JdbcJob job : jobs) {
+      job.owner = this;
+      for (Query query : job.queries) {
+        if (!query.stream) {
+          queryFamilies.add(query.metricName);
+        }
+      }
+      if (job.parallelism > 1 && job.executor == null) {
+        job.executor = JdbcExecutors.newExecutor(executorKind, job.parallelism, "jdbc-executor-" + job.name);
+      }
+      for (JdbcConnection connection : job.connections) {
+        connection.owner = this;
+        if (connection.pool == null) {
+          connection.pool =
+              new JdbcConnectionPool(
+                  connection.url, connection.username, connection.password, connection.poolSettings);
+        }
+        if (connection.breaker == null) {
+          final JdbcConnectionPool pool = connection.pool;
+          connection.breaker =
+              new JdbcCircuitBreaker(connection.url, connection.breakerSettings, () -> pool.borrow().close());
+        }
+      }
+    }
   }
 
-  List<Collector.MetricFamilySamples> runJobs() {
-    return
-        jobs.stream()
-            .flatMap(job -> runJob(job).stream())
-            .collect(toList());
+  /**
+   * Take over what did not change from the previous configuration. Jobs
+   * whose definition is identical are reused as a whole. Changed jobs reuse
+   * the connections and queries that are identical. What is taken over is
+   * owned by this configuration, so closing the previous one leaves it open.
+   */
+  private void adopt(JdbcConfig previous) {
+    if (previous.executor != null
+        && previous.parallelism == parallelism
+        && previous.executorKind.equals(executorKind)) {
+      // Shared, the previous configuration may still be serving scrapes until this one is warmed up.
+      executor = previous.executor;
+      previous.executorHandedOver = true;
+    }
+    if (previous.cache != null && previous.cacheSize == cacheSize) {
+      cache = previous.cache;
+    }
+    if (previous.history != null && history != null && previous.history.sameSettings(history)) {
+      history = previous.history;
+      history.retain(jobs.stream().map(job -> job.name).collect(toSet()));
+    }
+
+    final Map<String, JdbcJob> previousJobs = new HashMap<>();
+    for (JdbcJob job : previous.jobs) {
+      previousJobs.put(job.name, job);
+    }
+
+    changedJobs = 0;
+    for (int i = 0; i < jobs.size(); i++) {
+      final JdbcJob job = jobs.get(i);
+      final JdbcJob old = previousJobs.remove(job.name);
+      if (old == null) {
+        changedJobs++;
+        continue;
+      }
+
+      if (job.sameDefinition(old) && previous.executorKind.equals(executorKind)) {
+        jobs.set(i, old);
+        if (previous.scheduler != null && old.interval > 0L) {
+          carried.put(old.name, previous.scheduler.latest(old.name));
+        }
+        continue;
+      }
+
+      changedJobs++;
+      for (int c = 0; c < job.connections.size(); c++) {
+        for (JdbcConnection oldConnection : old.connections) {
+          if (oldConnection.owner == previous
+              && oldConnection.definition.equals(job.connections.get(c).definition)
+              && oldConnection.labels.sameAs(job.connections.get(c).labels)) {
+            oldConnection.owner = this;
+            oldConnection.retain(job.queries.stream().map(query -> query.name).collect(toSet()));
+            job.connections.set(c, oldConnection);
+            break;
+          }
+        }
+      }
+      for (int q = 0; q < job.queries.size(); q++) {
+        for (Query oldQuery : old.queries) {
+          if (oldQuery.sameDefinition(job.queries.get(q))) {
+            job.queries.set(q, oldQuery);
+            break;
+          }
+        }
+      }
+    }
+    changedJobs += previousJobs.size();
   }
 
-  private List<Collector.MetricFamilySamples> runJob(JdbcJob job) {
-    LOGGER.log(Level.INFO, "Running JDBC job: " + job.name);
+  /**
+   * Label the connections of `job` with their URL when their `labels` do not
+   * tell them apart, as their samples would otherwise have the same labels,
+   * and those of all but the first connection be dropped as duplicates.
+   */
+  private static void distinguishConnections(JdbcJob job) {
+    if (job.connections.size() < 2) {
+      return;
+    }
+    final Set<Map<String, String>> labelSets = new HashSet<>();
+    for (JdbcConnection connection : job.connections) {
+      labelSets.add(connection.labels.asMap());
+    }
+    if (labelSets.size() == job.connections.size()) {
+      return;
+    }
 
-    double error = 0;
-    List<Collector.MetricFamilySamples> mfsList = new ArrayList<>();
-    List<Connection> connections = new ArrayList<>();
-    long start = System.nanoTime();
+    final Set<String> urls = job.connections.stream().map(connection -> connection.url).collect(toSet());
+    if (urls.size() < job.connections.size()
+        || job.connections.stream().anyMatch(connection -> connection.labels.names.contains(CONNECTION_LABEL))) {
+      throw new IllegalArgumentException(
+          String.format("JDBC Job %s has connections that neither their `labels` nor their URL tell apart.",
+              job.name));
+    }
+    for (JdbcConnection connection : job.connections) {
+      connection.labels = connection.labels.with(CONNECTION_LABEL, connection.url);
+    }
+  }
 
-    try {
-      List<Collector.MetricFamilySamples> mfsListFromJobs =
-          job.connections
-              .stream()
-              .flatMap(connection -> {
-                try {
-                  LOGGER.info(String.format("JDBC Connection URL: %s", connection.url));
-
-                  final Connection conn =
-                      DriverManager.getConnection(
-                          connection.url, connection.username, connection.password);
-
-                  connections.add(conn);
-
-                  return
-                      job.queries
-                          .stream()
-                          .flatMap(query -> {
-                            try {
-                              PreparedStatement statement = conn.prepareStatement(query.query);
-                              ResultSet rs = statement.executeQuery();
-                              return getSamples(query, rs).stream();
-                            } catch (SQLException e) {
-                              LOGGER.log(Level.SEVERE, String.format("Error executing query: %s", query.query), e);
-                              return Stream.empty();
-                            }
-                          });
-                } catch (SQLException e) {
-                  LOGGER.log(Level.SEVERE, "Error connecting to database", e);
-                  return Stream.empty();
-                }
-              })
-              .collect(toList());
+  /**
+   * Number of jobs added, changed or removed compared to the configuration
+   * this one was built from.
+   */
+  int changedJobs() {
+    return changedJobs;
+  }
+
+  /**
+   * A value is either a column name, or a map with a `name`, an optional
+   * `type` and an optional `default` used when the column is SQL NULL.
+   */
+  private static Value parseValue(Object valueObject) {
+    if (!(valueObject instanceof Map)) {
+      return new Value((String) valueObject);
+    }
+
+    final Map<String, Object> valueMap = (Map<String, Object>) valueObject;
+    if (!valueMap.containsKey("name")) {
+      throw new IllegalArgumentException("JDBC Query value does not have a `name` defined. " +
+          "This value is required to execute collector.");
+    }
+    final Value value = new Value((String) valueMap.get("name"));
+
+    if (valueMap.containsKey("type")) {
+      final String type = String.valueOf(valueMap.get("type"));
+      switch (type) {
+        case "gauge":
+          value.type = Collector.Type.GAUGE;
+          break;
+        case "counter":
+          value.type = Collector.Type.COUNTER;
+          break;
+        case "untyped":
+          value.type = Collector.Type.UNKNOWN;
+          break;
+        default:
+          throw new IllegalArgumentException(
+              String.format("JDBC Query value type `%s` is not valid. " +
+                  "Use `gauge`, `counter` or `untyped`.", type));
+      }
+    }
+
+    if (valueMap.containsKey("default")) {
+      final Object defaultValue = valueMap.get("default");
+      if (!(defaultValue instanceof Number)) {
+        throw new IllegalArgumentException("JDBC Query value `default` must be a number.");
+      }
+      value.defaultValue = ((Number) defaultValue).doubleValue();
+    }
+    return value;
+  }
+
+  /**
+   * Read `max_rows`, `max_series` and `max_samples` into `limits`, keeping
+   * what is already there for keys that are missing.
+   */
+  private static void parseLimits(Map<String, Object> object, Limits limits) {
+    if (object.containsKey("max_rows")) {
+      limits.maxRows = parseLimit(object.get("max_rows"), "max_rows");
+    }
+    if (object.containsKey("max_series")) {
+      limits.maxSeries = (int) parseLimit(object.get("max_series"), "max_series");
+    }
+    if (object.containsKey("max_samples")) {
+      limits.maxSamples = parseLimit(object.get("max_samples"), "max_samples");
+    }
+  }
 
-      mfsList.addAll(mfsListFromJobs);
-    } catch (Exception e) {
-      error = 1;
+  private static long parseLimit(Object value, String key) {
+    final long limit = ((Number) value).longValue();
+    if (limit < 1L) {
+      throw new IllegalArgumentException(String.format("JDBC Config `%s` must be at least 1.", key));
+    }
+    return limit;
+  }
+
+  private static double parseFraction(Object value, String key) {
+    final double fraction = ((Number) value).doubleValue();
+    if (fraction < 0.0 || fraction > 1.0) {
+      throw new IllegalArgumentException(String.format("JDBC Config `%s` must be between 0 and 1.", key));
+    }
+    return fraction;
+  }
+
+  private static int parseParallelism(Object value) {
+    final int parallelism = (Integer) value;
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("JDBC Config `parallelism` must be at least 1.");
+    }
+    return parallelism;
+  }
+
+  /**
+   * Parse a duration such as `30s`, `5m` or `1h` into milliseconds. Plain
+   * numbers are taken as seconds.
+   */
+  static long parseDuration(Object value) {
+    if (value instanceof Number) {
+      return TimeUnit.SECONDS.toMillis(((Number) value).longValue());
+    }
+    final Matcher matcher = DURATION_PATTERN.matcher(String.valueOf(value).trim());
+    if (!matcher.matches()) {
+      throw new IllegalArgumentException(
+          String.format("JDBC Config duration `%s` is not valid. Use values like `30s`, `5m` or `1h`.", value));
+    }
+    final long amount = Long.parseLong(matcher.group(1));
+    final String unit = Optional.ofNullable(matcher.group(2)).orElse("s");
+    switch (unit) {
+      case "ms":
+        return amount;
+      case "m":
+        return TimeUnit.MINUTES.toMillis(amount);
+      case "h":
+        return TimeUnit.HOURS.toMillis(amount);
+      case "d":
+        return TimeUnit.DAYS.toMillis(amount);
+      default:
+        return TimeUnit.SECONDS.toMillis(amount);
+    }
+  }
+
+  /**
+   * Start running every job that has an `interval` in the background. From
+   * then on, {@link #runJobs()} returns their latest results instead of
+   * querying the database. With `jitter`, first runs are spread over up to
+   * that fraction of each job's interval, and later runs drift by as much,
+   * so jobs sharing an interval do not hit their databases at the same tick.
+   */
+  synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+    final List<JdbcJob> scheduled =
+        jobs.stream().filter(job -> job.interval > 0L).collect(toList());
+    if (scheduled.isEmpty()) {
+      return;
+    }
+    scheduler = new JdbcScheduler(scheduled.size());
+    for (JdbcJob job : scheduled) {
+      LOGGER.info(String.format("Scheduling JDBC job %s every %d ms", job.name, job.interval));
+      long initialDelay = jittered(0L, job.interval);
+      final List<Collector.MetricFamilySamples> latest = carried.remove(job.name);
+      if (latest != null && !latest.isEmpty()) {
+        // Carried over from before a reload, so resume the job's schedule instead of running it now.
+        scheduler.seed(job.name, latest);
+        final long sinceLastRun = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - job.lastRun);
+        initialDelay = Math.max(0L, job.interval - sinceLastRun);
+      }
+      // Centered on the interval, so the job still runs once per interval on average.
+      final LongSupplier nextDelay = () -> jittered(job.interval - (long) (jitter * job.interval / 2), job.interval);
+      if (job.push) {
+        scheduler.schedule(job.name, initialDelay, nextDelay, () -> {
+          final List<Collector.MetricFamilySamples> mfsList = mergeFamilies(runJob(job));
+          // Merged, as each connection of the job returns families of its own.
+          pusher.push(job.name, mfsList);
+          return mfsList;
+        });
+      } else {
+        scheduler.schedule(job.name, initialDelay, nextDelay, () -> runJob(job));
+      }
+    }
+  }
+
+  /**
+   * `delay` plus a random part of up to `jitter` of `interval`.
+   */
+  private long jittered(long delay, long interval) {
+    if (jitter == 0.0) {
+      return delay;
+    }
+    return delay + (long) (ThreadLocalRandom.current().nextDouble() * jitter * interval);
+  }
+
+  /**
+   * Open the pooled connections of every connection in parallel, as many as
+   * it runs queries at the same time, and prepare every statement on them,
+   * so the first scrape does not pay for loading drivers and connecting.
+   * Label and value columns are checked against the metadata of each
+   * statement. Completes once every connection is warmed up, or failed, with
+   * the problems found.
+   */
+  CompletableFuture<List<String>> warmUp() {
+    List<Map.Entry<JdbcJob, JdbcConnection>> targets = new ArrayList<>();
+    for (JdbcJob job : jobs) {
+      for (JdbcConnection connection : job.connections) {
+        targets.add(new AbstractMap.SimpleImmutableEntry<>(job, connection));
+      }
+    }
+    if (targets.isEmpty()) {
+      return CompletableFuture.completedFuture(Collections.emptyList());
+    }
+
+    final long start = System.nanoTime();
+    final ExecutorService warmUpExecutor =
+        JdbcExecutors.newExecutor(executorKind, Math.min(targets.size(), MAX_WARM_UP_THREADS), "jdbc-warm-up");
+    final List<CompletableFuture<List<String>>> warmUps =
+        targets.stream()
+            .map(target -> CompletableFuture.supplyAsync(
+                () -> warmUp(target.getKey(), target.getValue()), warmUpExecutor))
+            .collect(toList());
+    return CompletableFuture.allOf(warmUps.toArray(new CompletableFuture[0]))
+        .thenApply(done -> {
+          warmUpExecutor.shutdown();
+          final List<String> problems =
+              warmUps.stream().flatMap(warmUp -> warmUp.join().stream()).collect(toList());
+          LOGGER.info(String.format("Warmed up %d JDBC connections in %d ms, %d problems found.",
+              targets.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), problems.size()));
+          return problems;
+        });
+  }
+
+  private static List<String> warmUp(JdbcJob job, JdbcConnection connection) {
+    List<String> problems = new ArrayList<>();
+    List<JdbcConnectionPool.PooledConnection> borrowed = new ArrayList<>();
+    try {
+      // Held together, so the pool opens a connection of its own for each.
+      for (int i = 0; i < connection.maxConcurrency; i++) {
+        borrowed.add(connection.pool.borrow());
+      }
+      connection.breaker.success();
+      borrowed:
+      for (int i = 0; i < borrowed.size(); i++) {
+        final JdbcConnectionPool.PooledConnection pooled = borrowed.get(i);
+        for (Query query : job.queries) {
+          try {
+            final PreparedStatement statement = pooled.prepare(query.query);
+            if (i == 0) {
+              problems.addAll(checkColumns(job, connection, query, statement.getMetaData()));
+            }
+          } catch (SQLException e) {
+            pooled.discard(query.query);
+            problems.add(String.format("Query %s of job %s cannot be prepared on %s: %s",
+                query.name, job.name, connection.url, e.getMessage()));
+            if (JdbcConnectionPool.isConnectionError(e)) {
+              pooled.invalidate();
+              connection.breaker.failure(e);
+              break borrowed;
+            }
+          }
+        }
+      }
+    } catch (SQLException e) {
+      connection.error(e.getSQLState());
+      connection.borrowFailed(e);
+      problems.add(String.format("Job %s cannot connect to %s: %s", job.name, connection.url, e.getMessage()));
+    } finally {
+      borrowed.forEach(JdbcConnectionPool.PooledConnection::close);
     }
+    problems.forEach(LOGGER::warning);
+    return problems;
+  }
 
-    connections.forEach(connection -> {
+  /**
+   * Every label and value of a query must name a column of its result set.
+   * Drivers that cannot describe a statement before running it are trusted.
+   */
+  private static List<String> checkColumns(JdbcJob job,
+                                           JdbcConnection connection,
+                                           Query query,
+                                           ResultSetMetaData metaData) throws SQLException {
+    if (metaData == null) {
+      return Collections.emptyList();
+    }
+    final Map<String, Integer> columns = JdbcSamples.columnIndexes(metaData);
+    List<String> missing = new ArrayList<>();
+    for (String label : query.labels) {
+      if (!columns.containsKey(label.toUpperCase(Locale.ROOT))) {
+        missing.add(label);
+      }
+    }
+    for (Value value : query.values) {
+      if (!columns.containsKey(value.name.toUpperCase(Locale.ROOT))) {
+        missing.add(value.name);
+      }
+    }
+    if (!missing.isEmpty()) {
+      return Collections.singletonList(
+          String.format("Query %s of job %s on %s has no column for %s.",
+              query.name, job.name, connection.url, String.join(", ", missing)));
+    }
+    if (query.allLabels) {
       try {
-        connection.close();
+        JdbcSamples.checkLabelNames(
+            query, connection.labels.appendTo(JdbcSamples.Columns.resolve(query, metaData).labelNames));
       } catch (SQLException e) {
-        LOGGER.log(Level.WARNING, "Error closing connection.", e);
+        return Collections.singletonList(
+            String.format("Query %s of job %s on %s: %s", query.name, job.name, connection.url, e.getMessage()));
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  List<Collector.MetricFamilySamples> runJobs() {
+    final JdbcScheduler current = scheduler;
+    final long scrapeDeadline = scrapeTimeout > 0L ? JdbcJobRun.deadlineAfter(scrapeTimeout) : JdbcJobRun.NO_DEADLINE;
+
+    // Every job is submitted before waiting on any of them, so jobs run in
+    // parallel when an executor is configured, and results keep job order.
+    List<Supplier<List<Collector.MetricFamilySamples>>> results = new ArrayList<>();
+    for (JdbcJob job : jobs) {
+      if (job.push) {
+        continue;
+      }
+      if (current != null && job.interval > 0L) {
+        final List<Collector.MetricFamilySamples> latest = current.latest(job.name);
+        results.add(() -> latest);
+      } else {
+        final JdbcJobRun run = submit(job, scrapeDeadline, null, false);
+        results.add(() -> record(job, run.await()));
+      }
+    }
+
+    return withinBudget(
+        mergeFamilies(
+            results.stream()
+                .flatMap(result -> result.get().stream())
+                .collect(toList())));
+  }
+
+  /**
+   * Drop the query samples past `max_total_samples`, in family order, so a
+   * scrape never exposes more than that however many queries reach their
+   * own limits. The exporter's own families are always kept.
+   */
+  private List<Collector.MetricFamilySamples> withinBudget(List<Collector.MetricFamilySamples> mfsList) {
+    if (maxTotalSamples == 0L) {
+      return mfsList;
+    }
+    long remaining = maxTotalSamples;
+    long dropped = 0L;
+    final List<Collector.MetricFamilySamples> kept = new ArrayList<>(mfsList.size());
+    for (Collector.MetricFamilySamples mfs : mfsList) {
+      if (!queryFamilies.contains(mfs.name)) {
+        kept.add(mfs);
+        continue;
+      }
+      if (mfs.samples.size() <= remaining) {
+        kept.add(mfs);
+        remaining -= mfs.samples.size();
+        continue;
+      }
+      dropped += mfs.samples.size() - remaining;
+      if (remaining > 0L) {
+        kept.add(new Collector.MetricFamilySamples(
+            mfs.name, mfs.type, mfs.help, mfs.samples.subList(0, (int) remaining)));
+        remaining = 0L;
+      }
+    }
+    if (dropped > 0L) {
+      OVER_BUDGET_SAMPLES.add(dropped);
+      LOGGER.warning(
+          String.format("Dropped %d samples past the `max_total_samples` of %d.", dropped, maxTotalSamples));
+    }
+    return kept;
+  }
+
+  /**
+   * Combine families of the same name, e.g. the scrape families of every job
+   * or a query run against several connections, so each family is exposed
+   * once. The first family's type and help are kept. Samples repeating the
+   * name and labels of an earlier sample of the family are dropped, as they
+   * would make the exposition invalid. Each sample is visited once.
+   */
+  static List<Collector.MetricFamilySamples> mergeFamilies(List<Collector.MetricFamilySamples> mfsList) {
+    final Map<String, List<Collector.MetricFamilySamples>> byName = new LinkedHashMap<>();
+    for (Collector.MetricFamilySamples mfs : mfsList) {
+      byName.computeIfAbsent(mfs.name, name -> new ArrayList<>(1)).add(mfs);
+    }
+
+    final List<Collector.MetricFamilySamples> merged = new ArrayList<>(byName.size());
+    for (List<Collector.MetricFamilySamples> parts : byName.values()) {
+      int size = 0;
+      for (Collector.MetricFamilySamples part : parts) {
+        size += part.samples.size();
+      }
+      final Set<SeriesKey> seen = new HashSet<>(size * 2);
+      final List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>(size);
+      for (Collector.MetricFamilySamples part : parts) {
+        for (Collector.MetricFamilySamples.Sample sample : part.samples) {
+          if (seen.add(new SeriesKey(sample))) {
+            samples.add(sample);
+          }
+        }
+      }
+
+      final Collector.MetricFamilySamples first = parts.get(0);
+      if (samples.size() < size) {
+        DUPLICATE_SAMPLES.add(size - samples.size());
+        LOGGER.fine(String.format("Dropped %d samples of %s with the same labels as another sample.",
+            size - samples.size(), first.name));
+      }
+      if (parts.size() == 1 && samples.size() == size) {
+        merged.add(first);
+      } else {
+        merged.add(new Collector.MetricFamilySamples(first.name, first.type, first.help, samples));
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Name and labels of a sample, what identifies a series in the exposition.
+   */
+  private static final class SeriesKey {
+    private final Collector.MetricFamilySamples.Sample sample;
+    private final int hash;
+
+    SeriesKey(Collector.MetricFamilySamples.Sample sample) {
+      this.sample = sample;
+      this.hash = 31 * (31 * sample.name.hashCode() + sample.labelNames.hashCode()) + sample.labelValues.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof SeriesKey)) {
+        return false;
       }
-    });
+      final Collector.MetricFamilySamples.Sample other = ((SeriesKey) o).sample;
+      return hash == ((SeriesKey) o).hash
+          && sample.name.equals(other.name)
+          && sample.labelValues.equals(other.labelValues)
+          && sample.labelNames.equals(other.labelNames);
+    }
+  }
+
+  private List<Collector.MetricFamilySamples> runJob(JdbcJob job) {
+    job.lastRun = System.nanoTime();
+    return record(job, submit(job, JdbcJobRun.NO_DEADLINE, null, stretchThreshold > 0.0).await());
+  }
 
-    List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
-    samples.add(
-        new Collector.MetricFamilySamples.Sample(
-            "jdbc_scrape_duration_seconds",
-            new ArrayList<>(),
-            new ArrayList<>(),
-            (System.nanoTime() - start) / 1.0E9));
+  private List<Collector.MetricFamilySamples> record(JdbcJob job, List<Collector.MetricFamilySamples> mfsList) {
+    if (history == null) {
+      return mfsList;
+    }
+    // Merged first, so the history does not keep a family per connection, nor duplicate samples.
+    final List<Collector.MetricFamilySamples> merged = mergeFamilies(mfsList);
+    history.record(job.name, System.currentTimeMillis(), merged);
+    return merged;
+  }
+
+  /**
+   * Write the runs of the job named `jobName`, or of every job when null,
+   * collected after `since` milliseconds since the epoch.
+   */
+  void writeHistory(Writer writer, String jobName, long since) throws IOException {
+    if (history == null) {
+      throw new IllegalArgumentException("JDBC Config does not have a `history` section.");
+    }
+    if (jobName != null && jobs.stream().noneMatch(job -> job.name.equals(jobName))) {
+      throw new IllegalArgumentException(String.format("JDBC Job `%s` is not defined.", jobName));
+    }
+    history.write(writer, jobName, since);
+  }
+
+  /**
+   * Run the job named `jobName`, or every job when null, against only the
+   * connections whose URL is `target`, or all when null. Selected jobs run
+   * right away, even those with an `interval`, on the same pools as
+   * regular scrapes.
+   */
+  List<Collector.MetricFamilySamples> probe(String jobName, String target) {
+    final long scrapeDeadline = scrapeTimeout > 0L ? JdbcJobRun.deadlineAfter(scrapeTimeout) : JdbcJobRun.NO_DEADLINE;
+
+    List<JdbcJobRun> runs = new ArrayList<>();
+    for (JdbcJob job : jobs) {
+      if (jobName != null && !jobName.equals(job.name)) {
+        continue;
+      }
+      final boolean[] selected = new boolean[job.connections.size()];
+      boolean any = false;
+      for (int i = 0; i < selected.length; i++) {
+        selected[i] = target == null || target.equals(job.connections.get(i).url);
+        any |= selected[i];
+      }
+      if (any) {
+        runs.add(submit(job, scrapeDeadline, selected, false));
+      }
+    }
+
+    if (runs.isEmpty()) {
+      throw new IllegalArgumentException(
+          String.format("JDBC Job `%s` with a connection to `%s` is not defined.", jobName, target));
+    }
+    return withinBudget(
+        mergeFamilies(
+            runs.stream()
+                .flatMap(run -> run.await().stream())
+                .collect(toList())));
+  }
+
+  /**
+   * Start running a job. When the job's `timeout` or the scrape deadline
+   * expires, statements still running are cancelled and queries not yet
+   * started are skipped. Only `selected` connections are queried, or all
+   * when null. In an `adaptive` run, queries whose stretched interval has
+   * not elapsed are served their previous results.
+   */
+  private JdbcJobRun submit(JdbcJob job, long scrapeDeadline, boolean[] selected, boolean adaptive) {
+    LOGGER.log(Level.INFO, "Running JDBC job: " + job.name);
+
+    long deadline = job.timeout > 0L ? JdbcJobRun.deadlineAfter(job.timeout) : JdbcJobRun.NO_DEADLINE;
+    if (scrapeDeadline != JdbcJobRun.NO_DEADLINE
+        && (deadline == JdbcJobRun.NO_DEADLINE || scrapeDeadline < deadline)) {
+      deadline = scrapeDeadline;
+    }
+    final JdbcJobRun run = new JdbcJobRun(job, deadline, selected, adaptive, inProgress);
+    if (closed) {  // Replaced by a reload, its pools are closing.
+      LOGGER.warning(String.format("JDBC job %s not run, its configuration was replaced.", job.name));
+      run.failed = true;
+      return run;
+    }
+    lanes.start(run);
+    return run;
+  }
+
+  /**
+   * Run the queries that have `stream` enabled, of the job named `jobName`
+   * and against connections to `target` (all when null), writing every row
+   * to `encoder` as soon as it is read. Like `collect`, concurrent scrapes
+   * and those within `min_interval` share a run.
+   */
+  void stream(JdbcTextEncoder encoder, String jobName, String target) throws IOException {
+    JdbcStreamer.stream(jobs, scrapeTimeout, minInterval, encoder, jobName, target);
+  }
+
+  List<Collector.MetricFamilySamples> poolSamples() {
+    final List<String> labelNames = new ArrayList<>();
+    labelNames.add("job");
+    labelNames.add("connection");
+
+    List<Collector.MetricFamilySamples.Sample> active = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> idle = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> waits = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> creation = new ArrayList<>();
+
+    for (JdbcJob job : jobs) {
+      for (JdbcConnection connection : job.connections) {
+        final List<String> labelValues = new ArrayList<>();
+        labelValues.add(job.name);
+        labelValues.add(connection.url);
+
+        final JdbcConnectionPool pool = connection.pool;
+        active.add(
+            new Collector.MetricFamilySamples.Sample(
+                "jdbc_pool_active_connections", labelNames, labelValues, pool.activeCount()));
+        idle.add(
+            new Collector.MetricFamilySamples.Sample(
+                "jdbc_pool_idle_connections", labelNames, labelValues, pool.idleCount()));
+        waits.add(
+            new Collector.MetricFamilySamples.Sample(
+                "jdbc_pool_waits_total", labelNames, labelValues, pool.waitCount()));
+        creation.add(
+            new Collector.MetricFamilySamples.Sample(
+                "jdbc_pool_connection_create_seconds_count", labelNames, labelValues, pool.createCount()));
+        creation.add(
+            new Collector.MetricFamilySamples.Sample(
+                "jdbc_pool_connection_create_seconds_sum", labelNames, labelValues, pool.createSeconds()));
+      }
+    }
+
+    List<Collector.MetricFamilySamples> mfsList = new ArrayList<>();
     mfsList.add(
         new Collector.MetricFamilySamples(
-            "jdbc_scrape_duration_seconds",
+            "jdbc_pool_active_connections",
             Collector.Type.GAUGE,
-            "Time this JDBC scrape took, in seconds.",
-            samples));
-
-    samples = new ArrayList<>();
-    samples.add(
-        new Collector.MetricFamilySamples.Sample(
-            "jdbc_scrape_error",
-            new ArrayList<>(),
-            new ArrayList<>(),
-            error));
+            "Connections currently borrowed from the pool.",
+            active));
     mfsList.add(
         new Collector.MetricFamilySamples(
-            "jdbc_scrape_error",
+            "jdbc_pool_idle_connections",
             Collector.Type.GAUGE,
-            "Non-zero if this scrape failed.",
-            samples));
-
+            "Connections currently idle in the pool.",
+            idle));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_pool_waits_total",
+            Collector.Type.COUNTER,
+            "Number of times a scrape had to wait for a pooled connection.",
+            waits));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_pool_connection_create_seconds",
+            Collector.Type.SUMMARY,
+            "Time spent opening new pooled connections, in seconds.",
+            creation));
     return mfsList;
   }
 
-  private List<Collector.MetricFamilySamples> getSamples(JdbcConfig.Query query,
-                                                         ResultSet rs)
-      throws SQLException {
-    List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
-
-    final String queryName = String.format("jdbc_%s", query.name);
-    while (rs.next()) {
-      List<String> labelValues =
-          query.labels
-              .stream()
-              .map(label -> {
-                try {
-                  return rs.getString(label);
-                } catch (SQLException e) {
-                  LOGGER.log(
-                      Level.WARNING,
-                      String.format("Label %s not found as part of the query result set.", label));
-                  return "";
-                }
-              }).collect(toList());
-
-      List<Collector.MetricFamilySamples.Sample> sample =
-          query.values.stream()
-              .map(value -> {
-                try {
-                  return rs.getFloat(value);
-                } catch (SQLException e) {
-                  LOGGER.log(
-                      Level.SEVERE,
-                      String.format("Sample value %s not found as part of the query result set.", value),
-                      e);
-                  return null;
-                }
-              })
-              .map(value -> new Collector.MetricFamilySamples.Sample(queryName, query.labels, labelValues, value))
-              .collect(toList());
+  /**
+   * Query and connection instrumentation of every job, labeled by job,
+   * connection and query. Statistics live with the connection, so they
+   * survive reloads that leave the connection unchanged.
+   */
+  List<Collector.MetricFamilySamples> querySamples() {
+    final List<String> connectionLabelNames = Arrays.asList("job", "connection");
+    final List<String> connectionErrorLabelNames = Arrays.asList("job", "connection", "sqlstate");
+    final List<String> queryLabelNames = Arrays.asList("job", "connection", "query");
+    final List<String> queryErrorLabelNames = Arrays.asList("job", "connection", "query", "sqlstate");
+    final List<String> truncationLabelNames = Arrays.asList("job", "connection", "query", "limit");
+
+    List<Collector.MetricFamilySamples.Sample> duration = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> rows = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> produced = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> queryErrors = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> truncations = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> cacheHits = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> cacheMisses = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> cacheAge = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> effectiveInterval = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> acquire = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> connectionErrors = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> up = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> skipped = new ArrayList<>();
 
-      samples.addAll(sample);
+    for (JdbcJob job : jobs) {
+      for (JdbcConnection connection : job.connections) {
+        final List<String> connectionLabelValues = Arrays.asList(job.name, connection.url);
+        if (connection.breaker != null) {
+          up.add(
+              new Collector.MetricFamilySamples.Sample(
+                  "jdbc_up", connectionLabelNames, connectionLabelValues, connection.breaker.isUp() ? 1 : 0));
+          skipped.add(
+              new Collector.MetricFamilySamples.Sample(
+                  "jdbc_connection_skipped_total",
+                  connectionLabelNames,
+                  connectionLabelValues,
+                  connection.breaker.skipped.sum()));
+        }
+        acquire.addAll(connection.acquire.collect().get(0).samples);
+        duration.addAll(connection.queryDuration.collect().get(0).samples);
+        connection.errors.forEach((sqlState, count) ->
+            connectionErrors.add(
+                new Collector.MetricFamilySamples.Sample(
+                    "jdbc_connection_errors_total",
+                    connectionErrorLabelNames,
+                    Arrays.asList(job.name, connection.url, sqlState),
+                    count.sum())));
+
+        for (Query query : job.queries) {
+          final JdbcQueryStats stats = connection.stats.get(query.name);
+          if (stats == null) {  // Not run yet.
+            continue;
+          }
+          final List<String> queryLabelValues = Arrays.asList(job.name, connection.url, query.name);
+          rows.add(
+              new Collector.MetricFamilySamples.Sample(
+                  "jdbc_query_rows", queryLabelNames, queryLabelValues, stats.rows));
+          produced.add(
+              new Collector.MetricFamilySamples.Sample(
+                  "jdbc_query_samples", queryLabelNames, queryLabelValues, stats.samples));
+          stats.errors.forEach((sqlState, count) ->
+              queryErrors.add(
+                  new Collector.MetricFamilySamples.Sample(
+                      "jdbc_query_errors_total",
+                      queryErrorLabelNames,
+                      Arrays.asList(job.name, connection.url, query.name, sqlState),
+                      count.sum())));
+
+          stats.truncations.forEach((limit, count) ->
+              truncations.add(
+                  new Collector.MetricFamilySamples.Sample(
+                      "jdbc_query_truncated_total",
+                      truncationLabelNames,
+                      Arrays.asList(job.name, connection.url, query.name, limit),
+                      count.sum())));
+
+          if (job.interval > 0L) {
+            effectiveInterval.add(
+                new Collector.MetricFamilySamples.Sample(
+                    "jdbc_query_effective_interval_seconds",
+                    queryLabelNames,
+                    queryLabelValues,
+                    (stats.effectiveInterval > 0L ? stats.effectiveInterval : job.interval) / 1000.0));
+          }
+
+          if (query.cacheTtl > 0L) {
+            cacheHits.add(
+                new Collector.MetricFamilySamples.Sample(
+                    "jdbc_query_cache_hits_total", queryLabelNames, queryLabelValues, stats.cacheHits.sum()));
+            cacheMisses.add(
+                new Collector.MetricFamilySamples.Sample(
+                    "jdbc_query_cache_misses_total", queryLabelNames, queryLabelValues, stats.cacheMisses.sum()));
+            if (stats.cacheUpdated != 0L) {
+              cacheAge.add(
+                  new Collector.MetricFamilySamples.Sample(
+                      "jdbc_query_cache_age_seconds",
+                      queryLabelNames,
+                      queryLabelValues,
+                      (System.nanoTime() - stats.cacheUpdated) / 1.0E9));
+            }
+          }
+        }
+      }
     }
 
-    List<Collector.MetricFamilySamples> samplesList = new ArrayList<>();
-    samplesList.add(
-        new Collector.MetricFamilySamples(queryName, Collector.Type.GAUGE, query.help, samples));
-    return samplesList;
+    List<Collector.MetricFamilySamples> mfsList = new ArrayList<>();
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_query_duration_seconds",
+            Collector.Type.HISTOGRAM,
+            "Time taken to execute a query and read its result set, in seconds.",
+            duration));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_query_rows",
+            Collector.Type.GAUGE,
+            "Rows returned by the last execution of a query.",
+            rows));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_query_samples",
+            Collector.Type.GAUGE,
+            "Samples produced by the last execution of a query.",
+            produced));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_query_errors_total",
+            Collector.Type.COUNTER,
+            "Failed query executions, by SQL state.",
+            queryErrors));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_query_truncated_total",
+            Collector.Type.COUNTER,
+            "Executions of a query whose results were cut short by one of its limits.",
+            truncations));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_query_cache_hits_total",
+            Collector.Type.COUNTER,
+            "Executions of a cached query served from the cache.",
+            cacheHits));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_query_cache_misses_total",
+            Collector.Type.COUNTER,
+            "Executions of a cached query that found nothing in the cache.",
+            cacheMisses));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_query_cache_age_seconds",
+            Collector.Type.GAUGE,
+            "Age of the cached results of a query, in seconds.",
+            cacheAge));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_query_effective_interval_seconds",
+            Collector.Type.GAUGE,
+            "Time between runs of a query of a scheduled job, its interval unless stretched because it runs slow.",
+            effectiveInterval));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_connection_acquire_seconds",
+            Collector.Type.HISTOGRAM,
+            "Time taken to borrow a connection from the pool, in seconds.",
+            acquire));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_connection_errors_total",
+            Collector.Type.COUNTER,
+            "Failures to borrow or open a connection, by SQL state.",
+            connectionErrors));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_duplicate_samples_total",
+            Collector.Type.COUNTER,
+            "Samples dropped because an earlier sample of the same family had the same labels.",
+            Collections.singletonList(
+                new Collector.MetricFamilySamples.Sample(
+                    "jdbc_duplicate_samples_total",
+                    Collections.emptyList(),
+                    Collections.emptyList(),
+                    DUPLICATE_SAMPLES.sum()))));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_samples_over_budget_total",
+            Collector.Type.COUNTER,
+            "Query samples dropped because a scrape reached `max_total_samples`.",
+            Collections.singletonList(
+                new Collector.MetricFamilySamples.Sample(
+                    "jdbc_samples_over_budget_total",
+                    Collections.emptyList(),
+                    Collections.emptyList(),
+                    OVER_BUDGET_SAMPLES.sum()))));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_up",
+            Collector.Type.GAUGE,
+            "Whether the database was reachable the last time it was tried.",
+            up));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_connection_skipped_total",
+            Collector.Type.COUNTER,
+            "Times the queries of a connection were skipped while its database was unreachable.",
+            skipped));
+    return mfsList;
+  }
+
+  /**
+   * Minimum time between two collections, scrapes in between share the
+   * latest result. Zero when every scrape that does not overlap another
+   * collects on its own.
+   */
+  long minInterval() {
+    return minInterval;
+  }
+
+  long scrapeTimeout() {
+    return scrapeTimeout;
   }
 
   long lastUpdate() {
     return lastUpdate;
   }
 
-  private static class JdbcConnection {
+  /**
+   * Stop scheduled jobs and executors, and drain every connection pool owned
+   * by this configuration. Runs in progress, e.g. scrapes still served by
+   * this configuration after a reload, are given up to `CLOSE_GRACE_MILLIS`
+   * to finish, then cancelled.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (scheduler != null) {
+      scheduler.close();
+    }
+    final List<ExecutorService> executors = new ArrayList<>();
+    if (executor != null && !executorHandedOver) {
+      executors.add(executor);
+    }
+    for (JdbcJob job : jobs) {
+      if (job.owner == this && job.executor != null) {
+        executors.add(job.executor);
+      }
+    }
+    executors.forEach(ExecutorService::shutdown);
+    final long grace = JdbcJobRun.deadlineAfter(CLOSE_GRACE_MILLIS);
+    for (JdbcJobRun run : inProgress) {
+      run.settle(grace);
+    }
+    executors.forEach(ExecutorService::shutdownNow);
+    for (JdbcJobRun run : inProgress) {
+      run.abort();
+    }
+
+    for (JdbcJob job : jobs) {
+      if (job.owner != this) {  // Taken over by a newer configuration.
+        continue;
+      }
+      for (JdbcConnection connection : job.connections) {
+        if (connection.owner != this) {
+          continue;
+        }
+        if (connection.pool != null) {
+          connection.pool.close();
+        }
+        if (connection.breaker != null) {
+          connection.breaker.close();
+        }
+      }
+    }
+  }
+
+  static class JdbcConnection {
+    Map<String, Object> definition;
+    JdbcConfig owner;
     String url;
     String username;
     String password;
+    long timeout = 0L;
+    int maxConcurrency = 1;
+    ConstantLabels labels = ConstantLabels.NONE;
+    volatile boolean batchUnsupported = false;
+    JdbcConnectionPool.Settings poolSettings;
+    JdbcConnectionPool pool;
+    final JdbcCircuitBreaker.Settings breakerSettings = new JdbcCircuitBreaker.Settings();
+    JdbcCircuitBreaker breaker;
+    String jobName;
+    final Histogram acquire =
+        JdbcQueryStats.durationHistogram(
+            "jdbc_connection_acquire_seconds",
+            "Time taken to borrow a connection from the pool, in seconds.",
+            "job", "connection");
+    final Histogram queryDuration =
+        JdbcQueryStats.durationHistogram(
+            "jdbc_query_duration_seconds",
+            "Time taken to execute a query and read its result set, in seconds.",
+            "job", "connection", "query");
+    final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    final Map<String, JdbcQueryStats> stats = new ConcurrentHashMap<>();
+
+    JdbcQueryStats stats(String queryName) {
+      return stats.computeIfAbsent(
+          queryName, key -> new JdbcQueryStats(queryDuration.labels(jobName, url, queryName)));
+    }
+
+    /**
+     * Forget the statistics of queries that are no longer run against this
+     * connection, e.g. removed from its job by a reload.
+     */
+    void retain(Set<String> queryNames) {
+      for (String queryName : stats.keySet()) {
+        if (!queryNames.contains(queryName)) {
+          stats.remove(queryName);
+          queryDuration.remove(jobName, url, queryName);
+        }
+      }
+    }
+
+    void observeAcquire(long nanos) {
+      acquire.labels(jobName, url).observe(nanos / 1.0E9);
+    }
+
+    void error(String sqlState) {
+      errors.computeIfAbsent(sqlState == null ? "unknown" : sqlState, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Report a failure to borrow a connection to the breaker, unless the
+     * pool was merely exhausted or closed: the database may well be
+     * reachable then, and skipping it would not help.
+     */
+    void borrowFailed(SQLException e) {
+      if (e instanceof JdbcConnectionPool.UnavailableException) {
+        LOGGER.warning(String.format("No connection to %s available: %s", url, e.getMessage()));
+      } else {
+        breaker.failure(e);
+      }
+    }
   }
 
-  private static class JdbcJob {
+  static class JdbcJob {
+    Map<String, Object> definition;
+    JdbcConfig owner;
+    volatile long lastRun;
     String name;
+    long interval = 0L;
+    boolean push = false;
+    boolean batch = false;
+    int parallelism = 0;
+    long timeout = 0L;
+    ExecutorService executor;
     List<JdbcConnection> connections = new ArrayList<>();
     List<Query> queries = new ArrayList<>();
+
+    /**
+     * Same YAML definition, and every `query_ref` resolves to the same SQL.
+     */
+    boolean sameDefinition(JdbcJob other) {
+      if (!definition.equals(other.definition) || queries.size() != other.queries.size()) {
+        return false;
+      }
+      for (int i = 0; i < queries.size(); i++) {
+        if (!queries.get(i).sameDefinition(other.queries.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
   }
 
-  private static class Query {
+  /**
+   * Labels of a connection, added to every sample of its queries, e.g. an
+   * `instance` label telling the samples of each connection of a job apart.
+   */
+  static class ConstantLabels {
+    static final ConstantLabels NONE = new ConstantLabels(Collections.emptyList(), Collections.emptyList());
+
+    final List<String> names;
+    final String[] values;
+
+    ConstantLabels(List<String> names, List<String> values) {
+      this.names = Collections.unmodifiableList(new ArrayList<>(names));
+      this.values = values.toArray(new String[0]);
+    }
+
+    ConstantLabels with(String name, String value) {
+      final List<String> allNames = new ArrayList<>(names);
+      allNames.add(name);
+      final List<String> allValues = new ArrayList<>(Arrays.asList(values));
+      allValues.add(value);
+      return new ConstantLabels(allNames, allValues);
+    }
+
+    Map<String, String> asMap() {
+      final Map<String, String> map = new HashMap<>();
+      for (int i = 0; i < values.length; i++) {
+        map.put(names.get(i), values[i]);
+      }
+      return map;
+    }
+
+    boolean sameAs(ConstantLabels other) {
+      return names.equals(other.names) && Arrays.equals(values, other.values);
+    }
+
+    List<String> appendTo(List<String> labelNames) {
+      if (names.isEmpty()) {
+        return labelNames;
+      }
+      final List<String> all = new ArrayList<>(labelNames.size() + names.size());
+      all.addAll(labelNames);
+      all.addAll(names);
+      return Collections.unmodifiableList(all);
+    }
+  }
+
+  /**
+   * Guards against queries returning far more than expected. Zero means no
+   * limit.
+   */
+  static class Limits {
+    long maxRows = 0L;
+    int maxSeries = 0;
+    long maxSamples = 0L;
+
+    Limits() {
+    }
+
+    Limits(Limits defaults) {
+      maxRows = defaults.maxRows;
+      maxSeries = defaults.maxSeries;
+      maxSamples = defaults.maxSamples;
+    }
+
+    boolean sameLimits(Limits other) {
+      return maxRows == other.maxRows && maxSeries == other.maxSeries && maxSamples == other.maxSamples;
+    }
+  }
+
+  static class Value {
+    String name;
+    Collector.Type type = Collector.Type.GAUGE;
+    Double defaultValue;  // Rows where the column is NULL are skipped without a default.
+
+    Value(String name) {
+      this.name = name;
+    }
+  }
+
+  static class Query {
+    Map<String, Object> definition;
     String name;
-    String help;
+    String metricName;
+    String help = "";
+    long timeout = 0L;
+    int fetchSize = 0;
+    long cacheTtl = 0L;
+    boolean stream = false;
+    Limits limits = new Limits();
+    volatile int expectedSamples = 16;
     List<String> labels = new ArrayList<>();
-    List<String> values = new ArrayList<>();
+    boolean allLabels = false;  // `labels: '*'`, every column that is not a value is a label.
+    String valueLabel = "value";  // Names the column of each sample, when there are several values.
+    volatile JdbcSamples.Columns columns;
+    List<Value> values = new ArrayList<>();
+    Collector.Type type = Collector.Type.GAUGE;
     String query;
     String queryRef;
+
+    boolean sameDefinition(Query other) {
+      return Objects.equals(definition, other.definition)
+          && Objects.equals(query, other.query)
+          && limits.sameLimits(other.limits);
+    }
   }
 }
@@ -0,0 +1,462 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Small pool of long-lived JDBC connections to a single database.
+ *
+ * Connections survive between scrapes, so the exporter does not pay for a new
+ * handshake every time metrics are collected.
+ */
+class JdbcConnectionPool implements AutoCloseable {
+  private static final Logger LOGGER = Logger.getLogger(JdbcConnectionPool.class.getName());
+
+  private static final long HOUSEKEEPING_PERIOD_MILLIS = 30_000L;
+
+  private static final ScheduledExecutorService HOUSEKEEPER =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jdbc-pool-housekeeper");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private final String url;
+  private final String username;
+  private final String password;
+  private final Settings settings;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  private final Deque<PooledConnection> idle = new ArrayDeque<>();
+  private final ScheduledFuture<?> housekeeping;
+
+  private int active = 0;
+  private int opening = 0;
+  private long waits = 0L;
+  private long createCount = 0L;
+  private long createNanos = 0L;
+  private boolean closed = false;
+
+  JdbcConnectionPool(String url, String username, String password, Settings settings) {
+    this.url = url;
+    this.username = username;
+    this.password = password;
+    this.settings = settings;
+    this.housekeeping =
+        HOUSEKEEPER.scheduleWithFixedDelay(
+            this::maintain,
+            HOUSEKEEPING_PERIOD_MILLIS,
+            HOUSEKEEPING_PERIOD_MILLIS,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Borrow a connection from the pool, opening a new one if none is idle and
+   * the pool has not reached its maximum size. Closing the returned
+   * connection hands it back to the pool. Throws an UnavailableException
+   * when the pool is closed, or stays exhausted for the borrow timeout.
+   */
+  PooledConnection borrow() throws SQLException {
+    return borrow(settings.borrowTimeout);
+  }
+
+  /**
+   * Borrow a connection, waiting at most `timeout` milliseconds for one to be
+   * handed back when the pool is exhausted.
+   */
+  PooledConnection borrow(long timeout) throws SQLException {
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    boolean waited = false;
+
+    while (true) {
+      PooledConnection candidate = null;
+      boolean open = false;
+
+      lock.lock();
+      try {
+        while (true) {
+          if (closed) {
+            throw new UnavailableException(String.format("Connection pool for %s is closed.", url), null);
+          }
+          if (!idle.isEmpty()) {
+            candidate = idle.pollFirst();
+            active++;
+            break;
+          }
+          if (active + opening < settings.maxSize) {
+            opening++;
+            open = true;
+            break;
+          }
+          if (!waited) {
+            waited = true;
+            waits++;
+          }
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0L) {
+            throw new UnavailableException(
+                String.format("Timed out waiting for a connection to %s.", url), null);
+          }
+          try {
+            available.awaitNanos(remaining);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnavailableException("Interrupted while waiting for a connection.", e);
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+
+      if (open) {
+        PooledConnection created;
+        try {
+          created = open();
+        } catch (SQLException | RuntimeException e) {
+          lock.lock();
+          try {
+            opening--;
+            available.signal();
+          } finally {
+            lock.unlock();
+          }
+          throw e;
+        }
+        lock.lock();
+        try {
+          opening--;
+          active++;
+        } finally {
+          lock.unlock();
+        }
+        return created;
+      }
+
+      if (isUsable(candidate)) {
+        return candidate;
+      }
+      candidate.invalidate();
+      candidate.close();
+    }
+  }
+
+  private PooledConnection open() throws SQLException {
+    long start = System.nanoTime();
+    Connection connection = DriverManager.getConnection(url, username, password);
+    long elapsed = System.nanoTime() - start;
+
+    lock.lock();
+    try {
+      createCount++;
+      createNanos += elapsed;
+    } finally {
+      lock.unlock();
+    }
+    return new PooledConnection(this, connection);
+  }
+
+  private boolean isUsable(PooledConnection pooled) {
+    if (isExpired(pooled, System.currentTimeMillis())) {
+      return false;
+    }
+    if (settings.validationQuery == null) {
+      return true;
+    }
+    try (Statement statement = pooled.connection().createStatement()) {
+      statement.execute(settings.validationQuery);
+      return true;
+    } catch (SQLException e) {
+      LOGGER.log(Level.FINE, String.format("Validation failed for connection to %s.", url), e);
+      return false;
+    }
+  }
+
+  private boolean isExpired(PooledConnection pooled, long now) {
+    return settings.maxLifetime > 0L && now - pooled.createdAt >= settings.maxLifetime;
+  }
+
+  void release(PooledConnection pooled) {
+    boolean discard;
+    lock.lock();
+    try {
+      active--;
+      discard = closed || pooled.invalid || isExpired(pooled, System.currentTimeMillis());
+      if (!discard) {
+        pooled.lastUsed = System.currentTimeMillis();
+        idle.addFirst(pooled);
+      }
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+    if (discard) {
+      closeQuietly(pooled);
+    }
+  }
+
+  /**
+   * Retire idle connections past their idle timeout or lifetime, and top the
+   * pool back up to its minimum size.
+   */
+  void maintain() {
+    Deque<PooledConnection> retired = new ArrayDeque<>();
+    int missing;
+
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      Iterator<PooledConnection> iterator = idle.iterator();
+      while (iterator.hasNext()) {
+        PooledConnection pooled = iterator.next();
+        boolean idleTooLong =
+            settings.idleTimeout > 0L
+                && now - pooled.lastUsed >= settings.idleTimeout
+                && active + opening + idle.size() > settings.minSize;
+        if (idleTooLong || isExpired(pooled, now)) {
+          iterator.remove();
+          retired.add(pooled);
+        }
+      }
+      missing = settings.minSize - (active + opening + idle.size());
+      if (missing > 0) {
+        opening += missing;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    retired.forEach(this::closeQuietly);
+
+    for (int i = 0; i < missing; i++) {
+      PooledConnection created = null;
+      try {
+        created = open();
+      } catch (SQLException e) {
+        LOGGER.log(Level.WARNING, String.format("Error opening connection to %s.", url), e);
+      }
+      lock.lock();
+      try {
+        opening--;
+        if (created != null) {
+          if (closed) {
+            closeQuietly(created);
+          } else {
+            idle.addFirst(created);
+          }
+        }
+        available.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Close every idle connection and make sure borrowed connections are closed
+   * as soon as they are handed back.
+   */
+  @Override
+  public void close() {
+    Deque<PooledConnection> drained;
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      drained = new ArrayDeque<>(idle);
+      idle.clear();
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    housekeeping.cancel(false);
+    drained.forEach(this::closeQuietly);
+  }
+
+  /**
+   * SQL state class `08` marks connection exceptions, after which a pooled
+   * connection should not be reused.
+   */
+  static boolean isConnectionError(SQLException e) {
+    return e.getSQLState() != null && e.getSQLState().startsWith("08");
+  }
+
+  private void closeQuietly(PooledConnection pooled) {
+    pooled.closeStatements();
+    try {
+      pooled.connection().close();
+    } catch (SQLException e) {
+      LOGGER.log(Level.WARNING, "Error closing connection.", e);
+    }
+  }
+
+  String url() {
+    return url;
+  }
+
+  int activeCount() {
+    lock.lock();
+    try {
+      return active;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int idleCount() {
+    lock.lock();
+    try {
+      return idle.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long waitCount() {
+    lock.lock();
+    try {
+      return waits;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long createCount() {
+    lock.lock();
+    try {
+      return createCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  double createSeconds() {
+    lock.lock();
+    try {
+      return createNanos / 1.0E9;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Connection handed out by the pool. Closing it returns it to the pool,
+   * unless it has been invalidated. Prepared statements are cached with the
+   * connection and closed together with it.
+   */
+  static class PooledConnection implements AutoCloseable {
+    private final JdbcConnectionPool pool;
+    private final Connection connection;
+    private final long createdAt;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private long lastUsed;
+    private boolean invalid = false;
+
+    private PooledConnection(JdbcConnectionPool pool, Connection connection) {
+      this.pool = pool;
+      this.connection = connection;
+      this.createdAt = System.currentTimeMillis();
+      this.lastUsed = createdAt;
+    }
+
+    Connection connection() {
+      return connection;
+    }
+
+    /**
+     * Prepared statement for a query, reused for as long as this connection
+     * lives so the database does not have to parse the same SQL every scrape.
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement statement = statements.get(sql);
+      if (statement == null || statement.isClosed()) {
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+      }
+      return statement;
+    }
+
+    /**
+     * Close and forget a cached statement, e.g. after it failed.
+     */
+    void discard(String sql) {
+      final PreparedStatement statement = statements.remove(sql);
+      if (statement != null) {
+        try {
+          statement.close();
+        } catch (SQLException e) {
+          LOGGER.log(Level.WARNING, "Error closing statement.", e);
+        }
+      }
+    }
+
+    int cachedStatements() {
+      return statements.size();
+    }
+
+    private void closeStatements() {
+      for (String sql : new ArrayList<>(statements.keySet())) {
+        discard(sql);
+      }
+    }
+
+    /**
+     * Mark this connection as broken, so it is discarded instead of going
+     * back to the pool.
+     */
+    void invalidate() {
+      invalid = true;
+    }
+
+    @Override
+    public void close() {
+      pool.release(this);
+    }
+  }
+
+  /**
+   * No connection could be handed out because the pool is exhausted or
+   * closed, rather than because the database cannot be reached. Its SQLState
+   * is the one for a timeout, not a connection exception.
+   */
+  static class UnavailableException extends SQLException {
+    UnavailableException(String reason, Throwable cause) {
+      super(reason, "HYT00", cause);
+    }
+  }
+
+  /**
+   * Pool sizing and lifecycle settings, as defined by a connection's `pool`
+   * configuration.
+   */
+  static class Settings {
+    int minSize = 0;
+    int maxSize = 1;
+    long idleTimeout = TimeUnit.MINUTES.toMillis(10);
+    long maxLifetime = TimeUnit.MINUTES.toMillis(30);
+    long borrowTimeout = TimeUnit.SECONDS.toMillis(30);
+    String validationQuery;
+  }
+}
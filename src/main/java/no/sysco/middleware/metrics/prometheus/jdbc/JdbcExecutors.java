@@ -0,0 +1,109 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Executors used to run queries in parallel.
+ */
+class JdbcExecutors {
+  private static final Logger LOGGER = Logger.getLogger(JdbcExecutors.class.getName());
+
+  static final String PLATFORM = "platform";
+  static final String VIRTUAL = "virtual";
+
+  private JdbcExecutors() {
+  }
+
+  /**
+   * Create an executor that runs at most `parallelism` tasks at a time, on
+   * platform threads or, when available (JDK 21+), on virtual threads.
+   */
+  static ExecutorService newExecutor(String kind, int parallelism, String name) {
+    if (VIRTUAL.equals(kind)) {
+      final ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+      if (virtual != null) {
+        return new BoundedExecutorService(virtual, parallelism);
+      }
+      LOGGER.warning("Virtual threads require JDK 21 or newer, falling back to platform threads.");
+    }
+
+    final AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(parallelism, runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  static boolean isValidKind(String kind) {
+    return PLATFORM.equals(kind) || VIRTUAL.equals(kind);
+  }
+
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Virtual threads are cheap to create, so parallelism is bounded with a
+   * semaphore instead of by the number of threads.
+   */
+  private static class BoundedExecutorService extends AbstractExecutorService {
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+
+    BoundedExecutorService(ExecutorService delegate, int parallelism) {
+      this.delegate = delegate;
+      this.permits = new Semaphore(parallelism);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      delegate.execute(() -> {
+        permits.acquireUninterruptibly();
+        try {
+          command.run();
+        } finally {
+          permits.release();
+        }
+      });
+    }
+
+    @Override
+    public void shutdown() {
+      delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return delegate.awaitTermination(timeout, unit);
+    }
+  }
+}
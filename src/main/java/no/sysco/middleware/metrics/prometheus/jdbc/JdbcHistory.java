@@ -0,0 +1,407 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the results of the last `size` runs of every job, so what was
+ * collected before a database stalled, or while Prometheus could not scrape,
+ * can still be read back from `/history` and backfilled.
+ *
+ * Each run is stored as a timestamp, an array of series ids and an array of
+ * values. Series, i.e. the name and labels of a sample, are interned once
+ * per job and dropped once no stored run refers to them, so the history of
+ * a job whose series do not change only holds primitive arrays.
+ */
+class JdbcHistory {
+  private static final Logger LOGGER = Logger.getLogger(JdbcHistory.class.getName());
+
+  static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+  final int size;
+  final long maxSamples;
+  private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+
+  JdbcHistory(int size, long maxSamples) {
+    this.size = size;
+    this.maxSamples = maxSamples;
+  }
+
+  /**
+   * Read the `history` section of the configuration file, or return null
+   * when there is none.
+   */
+  static JdbcHistory parse(Map<String, Object> yamlConfig) {
+    if (!yamlConfig.containsKey("history")) {
+      return null;
+    }
+    final Map<String, Object> historyObject =
+        Optional.ofNullable((Map<String, Object>) yamlConfig.get("history"))
+            .orElse(new HashMap<>());
+
+    int size = 60;
+    if (historyObject.containsKey("size")) {
+      size = (Integer) historyObject.get("size");
+      if (size < 1) {
+        throw new IllegalArgumentException("JDBC History `size` must be at least 1.");
+      }
+    }
+    long maxSamples = 100_000L;
+    if (historyObject.containsKey("max_samples")) {
+      maxSamples = ((Number) historyObject.get("max_samples")).longValue();
+      if (maxSamples < 1L) {
+        throw new IllegalArgumentException("JDBC History `max_samples` must be at least 1.");
+      }
+    }
+    return new JdbcHistory(size, maxSamples);
+  }
+
+  boolean sameSettings(JdbcHistory other) {
+    return size == other.size && maxSamples == other.maxSamples;
+  }
+
+  /**
+   * Store the results of a run of `jobName`, collected at `timestamp`
+   * milliseconds since the epoch, replacing its oldest run once full. A run
+   * of more than `max_samples` samples is not stored, as it would not fit
+   * even once every other run is dropped.
+   */
+  void record(String jobName, long timestamp, List<Collector.MetricFamilySamples> mfsList) {
+    int total = 0;
+    for (Collector.MetricFamilySamples mfs : mfsList) {
+      total += mfs.samples.size();
+    }
+    if (total > maxSamples) {
+      LOGGER.warning(String.format("Run of job %s has %d samples, more than the history's `max_samples` of %d, " +
+          "it is not kept.", jobName, total, maxSamples));
+      return;
+    }
+    rings.computeIfAbsent(jobName, name -> new Ring(size)).add(timestamp, mfsList, total, maxSamples);
+  }
+
+  /**
+   * Forget the runs of jobs no longer configured.
+   */
+  void retain(Set<String> jobNames) {
+    rings.keySet().retainAll(jobNames);
+  }
+
+  boolean contains(String jobName) {
+    return rings.containsKey(jobName);
+  }
+
+  /**
+   * Write the runs of `jobName`, or of every job when null, collected after
+   * `since` milliseconds since the epoch, in the OpenMetrics text format
+   * with a timestamp on every sample, as `promtool tsdb
+   * create-blocks-from openmetrics` reads it. A series exposed by several
+   * jobs is written in time order, keeping the sample of the first job at
+   * a time when they were collected together.
+   */
+  void write(Writer writer, String jobName, long since) throws IOException {
+    // Family -> series -> its samples in time order, as OpenMetrics wants the samples of a series together.
+    // Only positions are indexed, lines are written straight to `writer`.
+    final Map<String, Map<Series, Positions>> families = new LinkedHashMap<>();
+    final List<Run> runs = new ArrayList<>();
+    for (Map.Entry<String, Ring> entry : new TreeMap<>(rings).entrySet()) {
+      if (jobName == null || jobName.equals(entry.getKey())) {
+        entry.getValue().collect(since, runs, families);
+      }
+    }
+
+    for (Map.Entry<String, Map<Series, Positions>> family : families.entrySet()) {
+      writer.write("# TYPE ");
+      writer.write(family.getKey());
+      writer.write(' ');
+      writer.write(typeName(family.getValue().keySet().iterator().next().type));
+      writer.write('\n');
+      for (Map.Entry<Series, Positions> series : family.getValue().entrySet()) {
+        final Positions positions = series.getValue();
+        positions.sort(runs);
+        for (int i = 0; i < positions.size; i++) {
+          final Run run = runs.get(positions.runs[i]);
+          // Jobs exposing the same series at the same time: the first is kept, as on `/metrics`.
+          if (i > 0 && run.millis == runs.get(positions.runs[i - 1]).millis) {
+            continue;
+          }
+          series.getKey().writeTo(writer);
+          writer.write(' ');
+          writer.write(Collector.doubleToGoString(run.values[positions.indexes[i]]));
+          writer.write(run.timestamp);
+        }
+      }
+    }
+    writer.write("# EOF\n");
+  }
+
+  private static String typeName(Collector.Type type) {
+    switch (type) {
+      case COUNTER:
+        return "counter";
+      case GAUGE:
+        return "gauge";
+      case SUMMARY:
+        return "summary";
+      case HISTOGRAM:
+        return "histogram";
+      default:
+        return "unknown";
+    }
+  }
+
+  /**
+   * Name and labels of a sample, and the family it belongs to.
+   */
+  private static final class Series {
+    final String family;
+    final Collector.Type type;
+    final String name;
+    final List<String> labelNames;
+    final List<String> labelValues;
+    private final int hash;
+
+    Series(Collector.MetricFamilySamples mfs, Collector.MetricFamilySamples.Sample sample) {
+      this.family = mfs.name;
+      this.type = mfs.type;
+      this.name = sample.name;
+      this.labelNames = sample.labelNames;
+      this.labelValues = sample.labelValues;
+      this.hash = 31 * (31 * name.hashCode() + labelNames.hashCode()) + labelValues.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Series)) {
+        return false;
+      }
+      final Series other = (Series) o;
+      return hash == other.hash
+          && name.equals(other.name)
+          && labelValues.equals(other.labelValues)
+          && labelNames.equals(other.labelNames)
+          && family.equals(other.family);
+    }
+
+    void writeTo(Writer writer) throws IOException {
+      writer.write(name);
+      if (!labelNames.isEmpty()) {
+        writer.write('{');
+        for (int i = 0; i < labelNames.size(); i++) {
+          if (i > 0) {
+            writer.write(',');
+          }
+          writer.write(labelNames.get(i));
+          writer.write("=\"");
+          final String value = labelValues.get(i) == null ? "" : labelValues.get(i);
+          for (int c = 0; c < value.length(); c++) {
+            final char ch = value.charAt(c);
+            if (ch == '\\' || ch == '"') {
+              writer.write('\\');
+              writer.write(ch);
+            } else if (ch == '\n') {
+              writer.write("\\n");
+            } else {
+              writer.write(ch);
+            }
+          }
+          writer.write('"');
+        }
+        writer.write('}');
+      }
+    }
+  }
+
+  /**
+   * Timestamp, formatted once, and values of a run being written.
+   */
+  private static final class Run {
+    final long millis;
+    final String timestamp;
+    final double[] values;
+
+    Run(long timestamp, double[] values) {
+      this.millis = timestamp;
+      this.timestamp = String.format(" %d.%03d\n", timestamp / 1000L, timestamp % 1000L);
+      this.values = values;
+    }
+  }
+
+  /**
+   * Samples of a series being written, as the run they belong to and their
+   * index in its values.
+   */
+  private static final class Positions {
+    int[] runs = new int[4];
+    int[] indexes = new int[4];
+    int size = 0;
+
+    void add(int run, int index) {
+      if (size == runs.length) {
+        runs = Arrays.copyOf(runs, size * 2);
+        indexes = Arrays.copyOf(indexes, size * 2);
+      }
+      runs[size] = run;
+      indexes[size] = index;
+      size++;
+    }
+
+    /**
+     * Order the samples by time. Those of each job are already, but a
+     * series exposed by several jobs gets the samples of one job after the
+     * other. Ties keep the order of the jobs.
+     */
+    void sort(List<Run> byIndex) {
+      boolean sorted = true;
+      for (int i = 1; i < size && sorted; i++) {
+        sorted = byIndex.get(runs[i - 1]).millis <= byIndex.get(runs[i]).millis;
+      }
+      if (sorted) {
+        return;
+      }
+      final Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, Comparator.comparingLong(i -> byIndex.get(runs[i]).millis));
+      final int[] sortedRuns = new int[size];
+      final int[] sortedIndexes = new int[size];
+      for (int i = 0; i < size; i++) {
+        sortedRuns[i] = runs[order[i]];
+        sortedIndexes[i] = indexes[order[i]];
+      }
+      runs = sortedRuns;
+      indexes = sortedIndexes;
+    }
+  }
+
+  /**
+   * Runs of one job, oldest first from `head - count`.
+   */
+  private static final class Ring {
+    private final long[] timestamps;
+    private final int[][] series;
+    private final double[][] values;
+    private int head = 0;
+    private int count = 0;
+    private long samples = 0L;
+
+    private final Map<Series, Integer> ids = new HashMap<>();
+    private final List<Series> byId = new ArrayList<>();
+    private int[] references = new int[16];
+    private int[] free = new int[16];
+    private int freeCount = 0;
+
+    Ring(int size) {
+      timestamps = new long[size];
+      series = new int[size][];
+      values = new double[size][];
+    }
+
+    synchronized void add(long timestamp, List<Collector.MetricFamilySamples> mfsList, int total, long maxSamples) {
+      if (count == timestamps.length) {
+        dropOldest();
+      }
+      while (count > 0 && samples + total > maxSamples) {
+        dropOldest();
+      }
+
+      final int[] runSeries = new int[total];
+      final double[] runValues = new double[total];
+      int i = 0;
+      for (Collector.MetricFamilySamples mfs : mfsList) {
+        for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+          final int id = intern(new Series(mfs, sample));
+          references[id]++;
+          runSeries[i] = id;
+          runValues[i] = sample.value;
+          i++;
+        }
+      }
+      timestamps[head] = timestamp;
+      series[head] = runSeries;
+      values[head] = runValues;
+      head = (head + 1) % timestamps.length;
+      count++;
+      samples += total;
+    }
+
+    private int intern(Series key) {
+      final Integer existing = ids.get(key);
+      if (existing != null) {
+        return existing;
+      }
+      final int id;
+      if (freeCount > 0) {
+        id = free[--freeCount];
+        byId.set(id, key);
+      } else {
+        id = byId.size();
+        byId.add(key);
+        if (id == references.length) {
+          references = Arrays.copyOf(references, id * 2);
+        }
+      }
+      ids.put(key, id);
+      return id;
+    }
+
+    private void dropOldest() {
+      final int oldest = (head - count + timestamps.length) % timestamps.length;
+      for (int id : series[oldest]) {
+        if (--references[id] == 0) {
+          ids.remove(byId.get(id));
+          byId.set(id, null);
+          if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+          }
+          free[freeCount++] = id;
+        }
+      }
+      samples -= series[oldest].length;
+      series[oldest] = null;
+      values[oldest] = null;
+      count--;
+    }
+
+    /**
+     * Add the runs after `since` to `runs`, and the position of each of
+     * their samples to its series in `families`. The arrays of a stored run
+     * never change, so they are written once the lock is released.
+     */
+    synchronized void collect(long since, List<Run> runs, Map<String, Map<Series, Positions>> families) {
+      for (int n = 0; n < count; n++) {
+        final int run = (head - count + n + timestamps.length) % timestamps.length;
+        if (timestamps[run] <= since) {
+          continue;
+        }
+        final int index = runs.size();
+        runs.add(new Run(timestamps[run], values[run]));
+        for (int i = 0; i < series[run].length; i++) {
+          final Series key = byId.get(series[run][i]);
+          families.computeIfAbsent(key.family, family -> new LinkedHashMap<>())
+              .computeIfAbsent(key, s -> new Positions())
+              .add(index, i);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A job in progress. Results are slotted by connection and query position,
+ * so the output does not depend on the order in which lanes finish.
+ */
+class JdbcJobRun {
+  private static final Logger LOGGER = Logger.getLogger(JdbcJobRun.class.getName());
+
+  static final ScheduledExecutorService TIMEOUTS =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jdbc-timeouts");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  static final long NO_DEADLINE = Long.MIN_VALUE;
+
+  static final int PENDING = 0;
+  static final int SUCCESS = 1;
+  static final int TIMEOUT = 2;
+  static final int ERROR = 3;
+
+  final JdbcConfig.JdbcJob job;
+  final long deadline;
+  final boolean[] selected;
+  final boolean adaptive;
+  final long start = System.nanoTime();
+  final LongAccumulator finished = new LongAccumulator(Math::max, start);
+  // Added by the submitting thread while a reload or the deadline may cancel them.
+  final List<Future<?>> futures = new CopyOnWriteArrayList<>();
+  final AtomicReferenceArray<Collector.MetricFamilySamples[]> results;
+  final AtomicIntegerArray status;
+  final Set<Statement> running = ConcurrentHashMap.newKeySet();
+  final Set<JdbcJobRun> inProgress;
+  final ScheduledFuture<?> expiry;
+  volatile boolean failed = false;
+  volatile boolean expired = false;
+
+  JdbcJobRun(JdbcConfig.JdbcJob job, long deadline, boolean[] selected, boolean adaptive, Set<JdbcJobRun> inProgress) {
+    this.job = job;
+    this.deadline = deadline;
+    this.selected = selected;
+    this.adaptive = adaptive;
+    this.results = new AtomicReferenceArray<>(job.connections.size() * job.queries.size());
+    this.status = new AtomicIntegerArray(job.connections.size() * job.queries.size());
+    this.expiry =
+        deadline == NO_DEADLINE
+            ? null
+            : TIMEOUTS.schedule(this::expire, deadline - start, TimeUnit.NANOSECONDS);
+    this.inProgress = inProgress;
+    inProgress.add(this);
+  }
+
+  boolean isSelected(int connectionIndex) {
+    return selected == null || selected[connectionIndex];
+  }
+
+  int slot(int connectionIndex, int queryIndex) {
+    return connectionIndex * job.queries.size() + queryIndex;
+  }
+
+  long remainingMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+  }
+
+  /**
+   * Statement timeout in whole seconds, capped by the time left before the
+   * deadline. Zero means no timeout.
+   */
+  int queryTimeoutSeconds(long timeoutMillis) {
+    long millis = timeoutMillis;
+    if (deadline != NO_DEADLINE) {
+      long remaining = Math.max(1L, remainingMillis());
+      millis = millis > 0L ? Math.min(millis, remaining) : remaining;
+    }
+    return timeoutSeconds(millis);
+  }
+
+  void expire() {
+    expired = true;
+    for (Statement statement : running) {
+      try {
+        statement.cancel();
+      } catch (SQLException e) {
+        LOGGER.log(Level.WARNING, "Error cancelling statement.", e);
+      }
+    }
+  }
+
+  /**
+   * Wait until lanes are done, or `deadline` in nanoseconds has passed.
+   */
+  void settle(long deadline) {
+    for (Future<?> future : futures) {
+      try {
+        future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException | CancellationException e) {
+        // Reported by await.
+      } catch (TimeoutException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Cancel running statements and lanes, including lanes an executor shut
+   * down will never start, so whoever awaits the run is not left waiting.
+   */
+  void abort() {
+    expire();
+    for (Future<?> future : futures) {
+      future.cancel(true);
+    }
+  }
+
+  List<Collector.MetricFamilySamples> await() {
+    for (Future<?> future : futures) {
+      try {
+        if (deadline == NO_DEADLINE) {
+          future.get();
+        } else {
+          future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed = true;
+      } catch (ExecutionException | CancellationException e) {
+        failed = true;
+      } catch (TimeoutException e) {
+        // Return whatever finished, lanes still running are cancelled.
+        expire();
+        break;
+      }
+    }
+    inProgress.remove(this);
+    if (expiry != null) {
+      expiry.cancel(false);
+    }
+    if (expired) {
+      finished.accumulate(System.nanoTime());
+      LOGGER.warning(String.format("JDBC job %s did not complete before its deadline.", job.name));
+    }
+
+    double error = failed ? 1 : 0;
+    List<Collector.MetricFamilySamples> mfsList = new ArrayList<>();
+    for (int i = 0; i < results.length(); i++) {
+      final Collector.MetricFamilySamples[] queryResults = results.get(i);
+      if (queryResults != null) {
+        Collections.addAll(mfsList, queryResults);
+      }
+    }
+
+    final List<String> labelNames = Arrays.asList("job", "connection", "query");
+    List<Collector.MetricFamilySamples.Sample> timeoutSamples = new ArrayList<>();
+    List<Collector.MetricFamilySamples.Sample> errorSamples = new ArrayList<>();
+    for (int c = 0; c < job.connections.size(); c++) {
+      if (!isSelected(c)) {
+        continue;
+      }
+      for (int q = 0; q < job.queries.size(); q++) {
+        if (job.queries.get(q).stream) {
+          continue;
+        }
+        int queryStatus = status.get(slot(c, q));
+        if (queryStatus == PENDING) {  // Never ran, because it ran out of time or could not connect.
+          queryStatus = expired ? TIMEOUT : ERROR;
+        }
+        final List<String> labelValues =
+            Arrays.asList(job.name, job.connections.get(c).url, job.queries.get(q).name);
+        timeoutSamples.add(
+            new Collector.MetricFamilySamples.Sample(
+                "jdbc_query_timeout", labelNames, labelValues, queryStatus == TIMEOUT ? 1 : 0));
+        errorSamples.add(
+            new Collector.MetricFamilySamples.Sample(
+                "jdbc_query_error", labelNames, labelValues, queryStatus == ERROR ? 1 : 0));
+      }
+    }
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_query_timeout",
+            Collector.Type.GAUGE,
+            "Non-zero if this query timed out, or was skipped because its job ran out of time.",
+            timeoutSamples));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_query_error",
+            Collector.Type.GAUGE,
+            "Non-zero if this query failed.",
+            errorSamples));
+
+    // Labeled by job, so the families of every job merge into one.
+    final List<String> jobLabelNames = Collections.singletonList("job");
+    final List<String> jobLabelValues = Collections.singletonList(job.name);
+    List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
+    samples.add(
+        new Collector.MetricFamilySamples.Sample(
+            "jdbc_scrape_duration_seconds",
+            jobLabelNames,
+            jobLabelValues,
+            (finished.get() - start) / 1.0E9));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_scrape_duration_seconds",
+            Collector.Type.GAUGE,
+            "Time this JDBC job took to run, in seconds.",
+            samples));
+
+    samples = new ArrayList<>();
+    samples.add(
+        new Collector.MetricFamilySamples.Sample(
+            "jdbc_scrape_error",
+            jobLabelNames,
+            jobLabelValues,
+            error));
+    mfsList.add(
+        new Collector.MetricFamilySamples(
+            "jdbc_scrape_error",
+            Collector.Type.GAUGE,
+            "Non-zero if this JDBC job failed.",
+            samples));
+
+    return mfsList;
+  }
+
+  static long deadlineAfter(long millis) {
+    return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  /**
+   * Statement timeout in whole seconds, rounded up. Zero means no timeout.
+   */
+  static int timeoutSeconds(long millis) {
+    return millis > 0L ? (int) Math.max(1L, TimeUnit.MILLISECONDS.toSeconds(millis + 999L)) : 0;
+  }
+}
@@ -0,0 +1,376 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executes the queries of job runs. Each connection of a job is queried by
+ * up to `max_concurrency` lanes, and each lane holds one pooled connection
+ * while it takes the job's queries in turn, serving them from the result
+ * cache, or from their previous results while they are stretched, when it
+ * can.
+ */
+class JdbcLanes {
+  private static final Logger LOGGER = Logger.getLogger(JdbcLanes.class.getName());
+
+  private static final ExecutorService REFRESHER =
+      Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "jdbc-cache-refresh");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private final ExecutorService executor;
+  private final JdbcResultCache cache;
+  private final double stretchThreshold;
+  private final int maxStretch;
+
+  JdbcLanes(ExecutorService executor, JdbcResultCache cache, double stretchThreshold, int maxStretch) {
+    this.executor = executor;
+    this.cache = cache;
+    this.stretchThreshold = stretchThreshold;
+    this.maxStretch = maxStretch;
+  }
+
+  /**
+   * Start the lanes of a run. Lanes run on the job's executor, on the global
+   * executor, or inline when neither is configured.
+   *
+   * When the run's deadline expires, statements still running are cancelled
+   * and queries not yet started are skipped. Only selected connections are
+   * queried. In an adaptive run, queries whose stretched interval has not
+   * elapsed are served their previous results.
+   */
+  void start(JdbcJobRun run) {
+    final JdbcConfig.JdbcJob job = run.job;
+    final ExecutorService executor = job.parallelism > 0 ? job.executor : this.executor;
+    for (int i = 0; i < job.connections.size(); i++) {
+      if (!run.isSelected(i)) {
+        continue;
+      }
+      final int connectionIndex = i;
+      final JdbcConfig.JdbcConnection connection = job.connections.get(i);
+      final AtomicInteger next = new AtomicInteger();
+      final int lanes = Math.min(connection.maxConcurrency, job.queries.size());
+
+      for (int lane = 0; lane < lanes; lane++) {
+        final Runnable task = () -> {
+          try {
+            runLane(run, connectionIndex, next);
+          } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, String.format("Error running JDBC job: %s", job.name), e);
+            run.failed = true;
+          } finally {
+            run.finished.accumulate(System.nanoTime());
+          }
+        };
+        if (executor == null) {
+          task.run();
+        } else {
+          try {
+            run.futures.add(executor.submit(task));
+          } catch (RejectedExecutionException e) {  // Shut down by a reload in the meantime.
+            run.failed = true;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Take queries of a connection one at a time, in order, until every query
+   * has been picked up by this or another lane.
+   */
+  private void runLane(JdbcJobRun run, int connectionIndex, AtomicInteger next) {
+    final JdbcConfig.JdbcJob job = run.job;
+    final JdbcConfig.JdbcConnection connection = job.connections.get(connectionIndex);
+
+    int index = next.getAndIncrement();
+    while (index < job.queries.size() && job.queries.get(index).stream) {  // Written by stream() instead.
+      index = next.getAndIncrement();
+    }
+    if (index >= job.queries.size()) {
+      return;
+    }
+    if (!connection.breaker.allow()) {  // Unreachable, its queries are reported as failed.
+      return;
+    }
+
+    LOGGER.info(String.format("JDBC Connection URL: %s", connection.url));
+
+    long borrowTimeout = connection.poolSettings.borrowTimeout;
+    if (run.deadline != JdbcJobRun.NO_DEADLINE) {
+      borrowTimeout = Math.min(borrowTimeout, Math.max(0L, run.remainingMillis()));
+    }
+
+    final long borrowStart = System.nanoTime();
+    try (JdbcConnectionPool.PooledConnection pooled = connection.pool.borrow(borrowTimeout)) {
+      connection.observeAcquire(System.nanoTime() - borrowStart);
+      connection.breaker.success();
+
+      final List<Integer> batch = new ArrayList<>();
+      for (; index < job.queries.size(); index = next.getAndIncrement()) {
+        final JdbcConfig.Query query = job.queries.get(index);
+        if (query.stream) {
+          continue;
+        }
+        final JdbcQueryStats stats = connection.stats(query.name);
+        final int slot = run.slot(connectionIndex, index);
+
+        if (run.expired) {
+          run.status.set(slot, JdbcJobRun.TIMEOUT);
+          continue;
+        }
+
+        if (run.adaptive && query.cacheTtl == 0L && serveDeferred(run, slot, query, stats)) {
+          continue;
+        }
+
+        JdbcResultCache.Entry entry = null;
+        if (query.cacheTtl > 0L) {
+          entry = cache.entry(connection, query);
+          if (serveCached(run, slot, entry, connection, query, stats)) {
+            continue;
+          }
+          if (entry.claim() == null) {  // Another scrape is loading it, share its result.
+            awaitCached(run, slot, entry, query, stats);
+            continue;
+          }
+        } else if (job.batch && !connection.batchUnsupported && stats.batchable()) {  // Run once all are claimed.
+          batch.add(index);
+          continue;
+        }
+
+        runQuery(run, slot, pooled, connection, query, stats, entry);
+      }
+      if (!batch.isEmpty()) {
+        JdbcBatch.runBatch(run, connectionIndex, pooled, batch);
+      }
+    } catch (SQLException e) {
+      connection.observeAcquire(System.nanoTime() - borrowStart);
+      connection.error(e.getSQLState());
+      connection.borrowFailed(e);
+    }
+  }
+
+  /**
+   * Serve the previous results of a query of a scheduled job while its
+   * stretched interval has not elapsed. A query is stretched while its
+   * average runtime exceeds `stretch_threshold` of the job's interval: it
+   * then runs about once per `average runtime / stretch_threshold`, up to
+   * `max_stretch` times the interval.
+   */
+  private boolean serveDeferred(JdbcJobRun run, int slot, JdbcConfig.Query query, JdbcQueryStats stats) {
+    final long interval = run.job.interval;
+    final double runtime = stats.averageRuntime / 1.0E6;
+    long effectiveInterval = interval;
+    if (runtime > stretchThreshold * interval) {
+      effectiveInterval = Math.min((long) (runtime / stretchThreshold), interval * maxStretch);
+    }
+    if (effectiveInterval != stats.effectiveInterval && stats.effectiveInterval != 0L) {
+      LOGGER.info(String.format("Query %s of job %s now runs every %d ms.", query.name, run.job.name, effectiveInterval));
+    }
+    stats.effectiveInterval = effectiveInterval;
+
+    final Collector.MetricFamilySamples[] previous = stats.lastResults;
+    // Runs of the job come about one interval apart, so the query is due within half of one.
+    final long due = stats.lastRun + TimeUnit.MILLISECONDS.toNanos(effectiveInterval - interval / 2);
+    if (previous == null || effectiveInterval == interval || System.nanoTime() - due >= 0L) {
+      return false;
+    }
+    run.results.set(slot, previous);
+    run.status.set(slot, JdbcJobRun.SUCCESS);
+    return true;
+  }
+
+  /**
+   * Execute a query and store its results, or its status, in the `slot` of
+   * `run`. Returns whether it succeeded.
+   */
+  static boolean runQuery(JdbcJobRun run,
+                          int slot,
+                          JdbcConnectionPool.PooledConnection pooled,
+                          JdbcConfig.JdbcConnection connection,
+                          JdbcConfig.Query query,
+                          JdbcQueryStats stats,
+                          JdbcResultCache.Entry entry) {
+    try {
+      final int timeout = run.queryTimeoutSeconds(query.timeout > 0L ? query.timeout : connection.timeout);
+      final long start = System.nanoTime();
+      final Collector.MetricFamilySamples[] results = execute(pooled, connection, query, timeout, stats, run);
+      run.results.set(slot, results);
+      run.status.set(slot, JdbcJobRun.SUCCESS);
+      if (run.adaptive && entry == null) {
+        stats.lastRun = start;
+        stats.lastResults = results;
+      }
+      if (entry != null) {
+        entry.complete(results);
+        stats.cacheUpdated = entry.updated();
+      }
+      return true;
+    } catch (SQLException e) {
+      if (entry != null) {
+        entry.fail(e);
+      }
+      if (e instanceof SQLTimeoutException || run.expired) {
+        LOGGER.warning(String.format("Query timed out: %s", query.query));
+        run.status.set(slot, JdbcJobRun.TIMEOUT);
+      } else if (JdbcConnectionPool.isConnectionError(e)) {
+        connection.breaker.failure(e);
+        run.status.set(slot, JdbcJobRun.ERROR);
+      } else {
+        LOGGER.log(Level.SEVERE, String.format("Error executing query: %s", query.query), e);
+        run.status.set(slot, JdbcJobRun.ERROR);
+      }
+      return false;
+    } catch (RuntimeException e) {
+      if (entry != null) {  // Do not leave scrapes waiting on a load that will never finish.
+        entry.fail(e);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Execute a query on a pooled connection and convert its rows. Statements
+   * are registered with `run`, when given, so they can be cancelled once its
+   * deadline expires.
+   */
+  static Collector.MetricFamilySamples[] execute(JdbcConnectionPool.PooledConnection pooled,
+                                                 JdbcConfig.JdbcConnection connection,
+                                                 JdbcConfig.Query query,
+                                                 int timeoutSeconds,
+                                                 JdbcQueryStats stats,
+                                                 JdbcJobRun run)
+      throws SQLException {
+    try {
+      final PreparedStatement statement = pooled.prepare(query.query);
+      statement.setQueryTimeout(timeoutSeconds);
+      statement.setFetchSize(query.fetchSize);
+
+      if (run != null) {
+        run.running.add(statement);
+      }
+      try {
+        if (run != null && run.expired) {  // Deadline passed while preparing, cancel would have missed it.
+          throw new SQLTimeoutException("JDBC job deadline expired.");
+        }
+        final long queryStart = System.nanoTime();
+        try (ResultSet rs = statement.executeQuery()) {
+          return JdbcSamples.getSamples(query, rs, stats, connection.labels, pooled)
+              .toArray(new Collector.MetricFamilySamples[0]);
+        } finally {
+          stats.observe(System.nanoTime() - queryStart);
+        }
+      } finally {
+        if (run != null) {
+          run.running.remove(statement);
+        }
+      }
+    } catch (SQLException e) {
+      // A failed or cancelled statement is not reused, in case the driver left it in a bad state.
+      pooled.discard(query.query);
+      stats.error(e.getSQLState());
+      if (JdbcConnectionPool.isConnectionError(e)) {
+        pooled.invalidate();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Serve a query from the cache when it has results. Stale results are
+   * still served, while a single background refresh replaces them.
+   */
+  private boolean serveCached(JdbcJobRun run,
+                              int slot,
+                              JdbcResultCache.Entry entry,
+                              JdbcConfig.JdbcConnection connection,
+                              JdbcConfig.Query query,
+                              JdbcQueryStats stats) {
+    final Collector.MetricFamilySamples[] cached = entry.results();
+    if (cached == null) {
+      stats.cacheMisses.increment();
+      return false;
+    }
+    stats.cacheHits.increment();
+    stats.cacheUpdated = entry.updated();
+    if (entry.ageNanos() >= TimeUnit.MILLISECONDS.toNanos(query.cacheTtl)) {
+      refresh(entry, connection, query, stats);
+    }
+    run.results.set(slot, cached);
+    run.status.set(slot, JdbcJobRun.SUCCESS);
+    return true;
+  }
+
+  private void awaitCached(JdbcJobRun run,
+                           int slot,
+                           JdbcResultCache.Entry entry,
+                           JdbcConfig.Query query,
+                           JdbcQueryStats stats) {
+    final CompletableFuture<Collector.MetricFamilySamples[]> pending = entry.pending();
+    try {
+      Collector.MetricFamilySamples[] results = entry.results();
+      if (pending != null) {
+        results =
+            run.deadline == JdbcJobRun.NO_DEADLINE
+                ? pending.get()
+                : pending.get(Math.max(0L, run.deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      }
+      if (results == null) {  // The load finished, and failed, before we got to wait for it.
+        run.status.set(slot, JdbcJobRun.ERROR);
+        return;
+      }
+      stats.cacheUpdated = entry.updated();
+      run.results.set(slot, results);
+      run.status.set(slot, JdbcJobRun.SUCCESS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      run.status.set(slot, JdbcJobRun.ERROR);
+    } catch (ExecutionException e) {
+      run.status.set(slot, e.getCause() instanceof SQLTimeoutException ? JdbcJobRun.TIMEOUT : JdbcJobRun.ERROR);
+    } catch (TimeoutException e) {
+      LOGGER.warning(String.format("Query timed out waiting for a cached result: %s", query.query));
+      run.status.set(slot, JdbcJobRun.TIMEOUT);
+    }
+  }
+
+  /**
+   * Reload a cached query in the background, unless it is already loading.
+   */
+  private static void refresh(JdbcResultCache.Entry entry,
+                              JdbcConfig.JdbcConnection connection,
+                              JdbcConfig.Query query,
+                              JdbcQueryStats stats) {
+    if (entry.claim() == null) {
+      return;
+    }
+    REFRESHER.execute(() -> {
+      final long timeout = query.timeout > 0L ? query.timeout : connection.timeout;
+      try (JdbcConnectionPool.PooledConnection pooled = connection.pool.borrow()) {
+        entry.complete(execute(pooled, connection, query, JdbcJobRun.timeoutSeconds(timeout), stats, null));
+        stats.cacheUpdated = entry.updated();
+      } catch (SQLException | RuntimeException e) {
+        LOGGER.log(Level.WARNING, String.format("Error refreshing cached query: %s", query.query), e);
+        entry.fail(e);
+      }
+    });
+  }
+}
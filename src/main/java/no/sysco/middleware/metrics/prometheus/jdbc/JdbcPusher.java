@@ -0,0 +1,291 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ships the results of jobs with `push: true` to a Pushgateway or to a
+ * Prometheus remote_write endpoint, for jobs too slow to be scraped.
+ */
+class JdbcPusher {
+  private static final Logger LOGGER = Logger.getLogger(JdbcPusher.class.getName());
+
+  private static final Counter pushes =
+      Counter.build()
+          .name("jdbc_push_total")
+          .labelNames("job", "result")
+          .help("Number of times the results of a job have been pushed, by result.").register();
+
+  private static final Counter pushRetries =
+      Counter.build()
+          .name("jdbc_push_retries_total")
+          .labelNames("job")
+          .help("Number of push requests retried after a failure.").register();
+
+  private static final Gauge pushLastSuccess =
+      Gauge.build()
+          .name("jdbc_push_last_success_timestamp_seconds")
+          .labelNames("job")
+          .help("Last time the results of a job were pushed successfully.").register();
+
+  static final String PUSHGATEWAY = "pushgateway";
+  static final String REMOTE_WRITE = "remote_write";
+
+  private static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(60);
+
+  String url;
+  String format = PUSHGATEWAY;
+  long timeout = TimeUnit.SECONDS.toMillis(30);
+  int maxRetries = 3;
+  long retryBackoff = TimeUnit.SECONDS.toMillis(1);
+  int batchSize = 500;
+
+  /**
+   * Read the `push` section of the configuration file, or return null when
+   * there is none.
+   */
+  static JdbcPusher parse(Map<String, Object> yamlConfig) {
+    if (!yamlConfig.containsKey("push")) {
+      return null;
+    }
+    final Map<String, Object> pushObject =
+        Optional.ofNullable((Map<String, Object>) yamlConfig.get("push"))
+            .orElse(new HashMap<>());
+    JdbcPusher pusher = new JdbcPusher();
+
+    if (pushObject.containsKey("url")) {
+      pusher.url = (String) pushObject.get("url");
+    } else {
+      throw new IllegalArgumentException("JDBC Push does not have a `url` defined.");
+    }
+    if (pushObject.containsKey("format")) {
+      pusher.format = (String) pushObject.get("format");
+      if (!PUSHGATEWAY.equals(pusher.format) && !REMOTE_WRITE.equals(pusher.format)) {
+        throw new IllegalArgumentException("JDBC Push `format` must be `pushgateway` or `remote_write`.");
+      }
+    }
+    if (pushObject.containsKey("timeout")) {
+      pusher.timeout = JdbcConfig.parseDuration(pushObject.get("timeout"));
+    }
+    if (pushObject.containsKey("max_retries")) {
+      pusher.maxRetries = (Integer) pushObject.get("max_retries");
+      if (pusher.maxRetries < 0) {
+        throw new IllegalArgumentException("JDBC Push `max_retries` must not be negative.");
+      }
+    }
+    if (pushObject.containsKey("retry_backoff")) {
+      pusher.retryBackoff = JdbcConfig.parseDuration(pushObject.get("retry_backoff"));
+    }
+    if (pushObject.containsKey("batch_size")) {
+      pusher.batchSize = (Integer) pushObject.get("batch_size");
+      if (pusher.batchSize < 1) {
+        throw new IllegalArgumentException("JDBC Push `batch_size` must be at least 1.");
+      }
+    }
+    return pusher;
+  }
+
+  /**
+   * Push the results of a run of `jobName`. Failed requests are retried
+   * with an exponential back-off, and given up after `max_retries`, until
+   * the job runs again.
+   */
+  void push(String jobName, List<Collector.MetricFamilySamples> mfsList) {
+    try {
+      if (REMOTE_WRITE.equals(format)) {
+        final long timestamp = System.currentTimeMillis();
+        for (byte[] batch : writeRequests(jobName, mfsList, timestamp, batchSize)) {
+          send(jobName, "POST", url, "application/x-protobuf", Snappy.compress(batch), true);
+        }
+      } else {
+        final String groupUrl =
+            url.replaceAll("/+$", "") + "/metrics/job/" + URLEncoder.encode(jobName, "UTF-8");
+        send(jobName, "PUT", groupUrl, TextFormat.CONTENT_TYPE_004, textFormat(mfsList), false);
+      }
+      pushes.labels(jobName, "success").inc();
+      pushLastSuccess.labels(jobName).setToCurrentTime();
+    } catch (IOException e) {
+      pushes.labels(jobName, "failure").inc();
+      LOGGER.log(Level.SEVERE, String.format("Error pushing results of JDBC job: %s", jobName), e);
+    }
+  }
+
+  private void send(String jobName, String method, String target, String contentType, byte[] body, boolean snappy)
+      throws IOException {
+    long backoff = retryBackoff;
+    for (int attempt = 0; ; attempt++) {
+      int status = 0;
+      String failure;
+      try {
+        status = request(method, target, contentType, body, snappy);
+        failure = "HTTP " + status;
+      } catch (IOException e) {
+        if (attempt >= maxRetries) {
+          throw e;
+        }
+        failure = e.toString();
+      }
+      if (status / 100 == 2) {
+        return;
+      }
+      // Other client errors would fail the same way again.
+      if (status / 100 == 4 && status != 429) {
+        throw new IOException(String.format("Push to %s rejected with HTTP %d.", target, status));
+      }
+      if (attempt >= maxRetries) {
+        throw new IOException(String.format("Push to %s failed with %s.", target, failure));
+      }
+      LOGGER.warning(String.format("Push to %s failed with %s, retrying in %d ms.", target, failure, backoff));
+      pushRetries.labels(jobName).inc();
+      try {
+        Thread.sleep(backoff);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Push interrupted.", e);
+      }
+      backoff = Math.min(backoff * 2, MAX_BACKOFF);
+    }
+  }
+
+  private int request(String method, String target, String contentType, byte[] body, boolean snappy)
+      throws IOException {
+    final HttpURLConnection connection = (HttpURLConnection) new URL(target).openConnection();
+    connection.setRequestMethod(method);
+    connection.setConnectTimeout((int) timeout);
+    connection.setReadTimeout((int) timeout);
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", contentType);
+    if (snappy) {
+      connection.setRequestProperty("Content-Encoding", "snappy");
+      connection.setRequestProperty("X-Prometheus-Remote-Write-Version", "0.1.0");
+    }
+    connection.setFixedLengthStreamingMode(body.length);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body);
+    }
+    final int status = connection.getResponseCode();
+    // Drain the response, so the connection can be kept alive for the next push.
+    try (InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+      if (in != null) {
+        final byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1) {
+          // Discarded.
+        }
+      }
+    }
+    return status;
+  }
+
+  static byte[] textFormat(List<Collector.MetricFamilySamples> mfsList) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+      TextFormat.write004(writer, Collections.enumeration(mfsList));
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Encode samples as remote_write `WriteRequest` messages of at most
+   * `batchSize` series each. Every sample is a series of its own, labeled
+   * with `__name__` and with `job` unless it has one already.
+   */
+  static List<byte[]> writeRequests(String jobName,
+                                    List<Collector.MetricFamilySamples> mfsList,
+                                    long timestamp,
+                                    int batchSize) {
+    List<byte[]> requests = new ArrayList<>();
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    int series = 0;
+    for (Collector.MetricFamilySamples mfs : mfsList) {
+      for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+        // Remote write requires labels sorted by name.
+        final Map<String, String> labels = new TreeMap<>();
+        for (int i = 0; i < sample.labelNames.size(); i++) {
+          labels.put(sample.labelNames.get(i), sample.labelValues.get(i));
+        }
+        labels.putIfAbsent("job", jobName);
+        labels.put("__name__", sample.name);
+
+        ByteArrayOutputStream timeSeries = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+          ByteArrayOutputStream labelMessage = new ByteArrayOutputStream();
+          writeString(labelMessage, 1, label.getKey());
+          writeString(labelMessage, 2, label.getValue() == null ? "" : label.getValue());
+          writeMessage(timeSeries, 1, labelMessage);
+        }
+        ByteArrayOutputStream sampleMessage = new ByteArrayOutputStream();
+        writeTag(sampleMessage, 1, 1);
+        writeFixed64(sampleMessage, Double.doubleToRawLongBits(sample.value));
+        writeTag(sampleMessage, 2, 0);
+        writeVarint(sampleMessage, timestamp);
+        writeMessage(timeSeries, 2, sampleMessage);
+
+        writeMessage(request, 1, timeSeries);
+        if (++series == batchSize) {
+          requests.add(request.toByteArray());
+          request.reset();
+          series = 0;
+        }
+      }
+    }
+    if (series > 0) {
+      requests.add(request.toByteArray());
+    }
+    return requests;
+  }
+
+  private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+    writeVarint(out, (field << 3) | wireType);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0L) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static void writeFixed64(ByteArrayOutputStream out, long value) {
+    for (int i = 0; i < 8; i++) {
+      out.write((int) (value >>> (8 * i)));
+    }
+  }
+
+  private static void writeString(ByteArrayOutputStream out, int field, String value) {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeTag(out, field, 2);
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeMessage(ByteArrayOutputStream out, int field, ByteArrayOutputStream message) {
+    writeTag(out, field, 2);
+    writeVarint(out, message.size());
+    out.write(message.toByteArray(), 0, message.size());
+  }
+}
@@ -0,0 +1,113 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Histogram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Execution statistics of one query against one connection.
+ */
+class JdbcQueryStats {
+  private static final double RUNTIME_WEIGHT = 0.3;
+  private static final long BATCH_BACKOFF_MILLIS = 60_000L;
+  private static final long MAX_BATCH_BACKOFF_MILLIS = 3_600_000L;
+
+  private static final double[] DURATION_BUCKETS =
+      {.005, .01, .025, .05, .075, .1, .25, .5, .75, 1, 2.5, 5, 7.5, 10, 30, 60};
+
+  final Histogram.Child duration;
+  final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+  final Map<String, LongAdder> truncations = new ConcurrentHashMap<>();
+  volatile long rows;
+  volatile long samples;
+  final JdbcSeriesTable series = new JdbcSeriesTable();
+  final JdbcStreamFlight flight = new JdbcStreamFlight();
+  final LongAdder cacheHits = new LongAdder();
+  final LongAdder cacheMisses = new LongAdder();
+  volatile long cacheUpdated;  // System.nanoTime() of the cached results served last, zero when none.
+  volatile double averageRuntime;  // Moving average of execution times, in nanoseconds, zero before the first.
+  volatile long effectiveInterval;  // Milliseconds between runs in a scheduled job, zero when not scheduled.
+  volatile long lastRun;  // System.nanoTime() of the last run in a scheduled job.
+  volatile Collector.MetricFamilySamples[] lastResults;  // Served while a stretched query is not due.
+  volatile long unbatchedUntil;  // System.nanoTime() until which the query runs outside its job's batch.
+  volatile int batchFailures;  // Consecutive failures on its own after a failed batch.
+
+  /**
+   * Statistics whose durations are recorded in `duration`, a child of the
+   * connection's `jdbc_query_duration_seconds` histogram.
+   */
+  JdbcQueryStats(Histogram.Child duration) {
+    this.duration = duration;
+  }
+
+  /**
+   * Statistics whose durations are not exported, e.g. of a result set
+   * converted on its own.
+   */
+  JdbcQueryStats() {
+    this(durationHistogram("jdbc_query_duration_seconds", "Unexported query durations.").labels());
+  }
+
+  /**
+   * Histogram of durations in seconds, with buckets up to a minute. It is
+   * not registered: its samples are collected along with the rest of the
+   * instrumentation of the connection it belongs to.
+   */
+  static Histogram durationHistogram(String name, String help, String... labelNames) {
+    return Histogram.build()
+        .name(name)
+        .help(help)
+        .labelNames(labelNames)
+        .buckets(DURATION_BUCKETS)
+        .create();
+  }
+
+  /**
+   * Record the time taken by an execution, in the histogram and in the
+   * exponentially weighted moving average.
+   */
+  void observe(long nanos) {
+    duration.observe(nanos / 1.0E9);
+    final double average = averageRuntime;
+    averageRuntime = average == 0.0 ? nanos : average + RUNTIME_WEIGHT * (nanos - average);
+  }
+
+  /**
+   * Whether the query runs in its job's batch, i.e. it has not recently
+   * failed on its own after a failed batch.
+   */
+  boolean batchable() {
+    return batchFailures == 0 || System.nanoTime() - unbatchedUntil >= 0L;
+  }
+
+  /**
+   * Keep the query out of its job's batch for a while, as it failed on its
+   * own after the batch failed, so a query failing every time does not fail
+   * the batch of the others too. The time doubles with every consecutive
+   * failure, up to an hour.
+   */
+  void batchFailed() {
+    final int failures = batchFailures + 1;
+    final long backoff = Math.min(MAX_BATCH_BACKOFF_MILLIS, BATCH_BACKOFF_MILLIS << Math.min(failures - 1, 6));
+    unbatchedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+    batchFailures = failures;
+  }
+
+  void batchSucceeded() {
+    if (batchFailures != 0) {
+      batchFailures = 0;
+    }
+  }
+
+  void error(String sqlState) {
+    errors.computeIfAbsent(sqlState == null ? "unknown" : sqlState, key -> new LongAdder()).increment();
+  }
+
+  void truncated(String limit) {
+    truncations.computeIfAbsent(limit, key -> new LongAdder()).increment();
+  }
+}
@@ -0,0 +1,131 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Bounded cache of converted query results, by connection and query. The
+ * least recently used entries are evicted first.
+ */
+class JdbcResultCache {
+  private final int maxEntries;
+  private final Map<Key, Entry> entries;
+
+  JdbcResultCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        return size() > JdbcResultCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Entry of a query run against a connection, created empty if missing.
+   */
+  synchronized Entry entry(Object connection, Object query) {
+    return entries.computeIfAbsent(new Key(connection, query), key -> new Entry());
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  int maxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * Latest results of a query, and the load in progress, if any. Only one
+   * load runs at a time, whoever claims it executes the query and everyone
+   * else either serves the previous results or waits for it.
+   */
+  static class Entry {
+    private volatile Collector.MetricFamilySamples[] results;
+    private volatile long updated;
+    private CompletableFuture<Collector.MetricFamilySamples[]> pending;
+
+    Collector.MetricFamilySamples[] results() {
+      return results;
+    }
+
+    long updated() {
+      return updated;
+    }
+
+    long ageNanos() {
+      return System.nanoTime() - updated;
+    }
+
+    /**
+     * Start a load, or return null if one is already in progress.
+     */
+    synchronized CompletableFuture<Collector.MetricFamilySamples[]> claim() {
+      if (pending != null) {
+        return null;
+      }
+      pending = new CompletableFuture<>();
+      return pending;
+    }
+
+    synchronized CompletableFuture<Collector.MetricFamilySamples[]> pending() {
+      return pending;
+    }
+
+    void complete(Collector.MetricFamilySamples[] loaded) {
+      updated = System.nanoTime();
+      results = loaded;
+      final CompletableFuture<Collector.MetricFamilySamples[]> loading;
+      synchronized (this) {
+        loading = pending;
+        pending = null;
+      }
+      if (loading != null) {
+        loading.complete(loaded);
+      }
+    }
+
+    void fail(Throwable cause) {
+      final CompletableFuture<Collector.MetricFamilySamples[]> loading;
+      synchronized (this) {
+        loading = pending;
+        pending = null;
+      }
+      if (loading != null) {
+        loading.completeExceptionally(cause);
+      }
+    }
+  }
+
+  /**
+   * Connections and queries are compared by identity, so an entry lives as
+   * long as the objects it was created for.
+   */
+  private static class Key {
+    private final Object connection;
+    private final Object query;
+
+    Key(Object connection, Object query) {
+      this.connection = connection;
+      this.query = query;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) o;
+      return connection == other.connection && query == other.query;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(connection) + System.identityHashCode(query);
+    }
+  }
+}
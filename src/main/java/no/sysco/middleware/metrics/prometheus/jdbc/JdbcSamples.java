@@ -0,0 +1,404 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Conversion of result sets into the samples of a query's metric family.
+ */
+class JdbcSamples {
+  private static final Logger LOGGER = Logger.getLogger(JdbcSamples.class.getName());
+
+  /**
+   * Convert a result set into the query's metric family.
+   *
+   * Label and value columns are resolved to indexes once per result set, so
+   * rows are read by position without any per-row lookup or lambda.
+   */
+  static List<Collector.MetricFamilySamples> getSamples(JdbcConfig.Query query,
+                                                        ResultSet rs)
+      throws SQLException {
+    return getSamples(query, rs, null, JdbcConfig.ConstantLabels.NONE);
+  }
+
+  /**
+   * Convert a result set, recording the rows read and samples produced in
+   * `stats` when given. The `constants` of the connection are appended to
+   * the labels of every sample. With `stats`, series seen in the previous
+   * run reuse its label values and, when their value did not change, its
+   * samples, and a run reusing every sample returns the previous family.
+   */
+  static List<Collector.MetricFamilySamples> getSamples(JdbcConfig.Query query,
+                                                        ResultSet rs,
+                                                        JdbcQueryStats stats,
+                                                        JdbcConfig.ConstantLabels constants)
+      throws SQLException {
+    return getSamples(query, rs, stats, constants, null);
+  }
+
+  /**
+   * Convert a result set read from a statement `pooled` caches, which is
+   * discarded when the query hits one of its limits.
+   */
+  static List<Collector.MetricFamilySamples> getSamples(JdbcConfig.Query query,
+                                                        ResultSet rs,
+                                                        JdbcQueryStats stats,
+                                                        JdbcConfig.ConstantLabels constants,
+                                                        JdbcConnectionPool.PooledConnection pooled)
+      throws SQLException {
+    final Columns resolved = Columns.resolve(query, rs.getMetaData());
+    final int[] labelColumns = resolved.labels;
+    final int[] valueColumns = resolved.values;
+    final int[] valueKinds = resolved.kinds;
+
+    final String[] valueLabels = resolved.valueLabels;
+    final int valueSlot = labelColumns.length;  // Left null in rows, set in the labels of each value's sample.
+
+    final String queryName = query.metricName;
+    // Named as exposed, or the family copies every sample to rename it.
+    final String sampleName = query.type == Collector.Type.COUNTER ? queryName + "_total" : queryName;
+    List<String> labelNames = constants.appendTo(resolved.labelNames);
+    if (query.allLabels) {
+      checkLabelNames(query, labelNames);
+    }
+    final int queryLabelCount = resolved.labelNames.size();
+    final int labelCount = queryLabelCount + constants.values.length;
+    final JdbcConfig.Limits limits = query.limits;
+    final Set<List<String>> series = limits.maxSeries > 0 ? new HashSet<>() : null;
+    List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>(query.expectedSamples);
+    Collector.MetricFamilySamples family = null;
+    long rows = 0L;
+    String truncated = null;
+
+    final JdbcSeriesTable table =
+        stats != null && stats.series.acquire(sampleName, labelNames, valueColumns.length, valueSlot, valueLabels)
+            ? stats.series
+            : null;
+    // With a table, label values are read into the same array for every row, and only copied for new series.
+    final String[] scratch = table == null ? null : new String[labelCount];
+    if (table != null) {
+      labelNames = table.labelNames();
+    }
+    try {
+      rows:
+      while (rs.next()) {
+        if (limits.maxRows > 0L && rows >= limits.maxRows) {
+          truncated = "max_rows";
+          break;
+        }
+        rows++;
+        final List<String> labelValues;
+        JdbcSeriesTable.Entry entry = null;
+        if (labelCount == 0 && table == null) {
+          labelValues = Collections.emptyList();
+        } else {
+          final String[] row = table == null ? new String[labelCount] : scratch;
+          for (int i = 0; i < labelColumns.length; i++) {
+            row[i] = labelColumns[i] == 0 ? "" : rs.getString(labelColumns[i]);
+          }
+          System.arraycopy(constants.values, 0, row, queryLabelCount, constants.values.length);
+          if (table == null) {
+            labelValues = Arrays.asList(row);
+          } else {
+            entry = table.entry(row);
+            labelValues = entry.labelValues;
+          }
+        }
+        if (series != null && series.add(labelValues) && series.size() > limits.maxSeries) {
+          truncated = "max_series";
+          break;
+        }
+
+        for (int i = 0; i < valueColumns.length; i++) {
+          if (valueColumns[i] == 0) {
+            continue;
+          }
+          if (limits.maxSamples > 0L && samples.size() >= limits.maxSamples) {
+            truncated = "max_samples";
+            break rows;
+          }
+          double sampleValue = readValue(rs, valueColumns[i], valueKinds[i]);
+          if (rs.wasNull()) {
+            final Double defaultValue = query.values.get(i).defaultValue;
+            if (defaultValue == null) {
+              continue;
+            }
+            sampleValue = defaultValue;
+          }
+          if (entry != null) {
+            samples.add(table.sample(entry, i, sampleValue));
+          } else if (valueLabels == null) {
+            samples.add(new Collector.MetricFamilySamples.Sample(sampleName, labelNames, labelValues, sampleValue));
+          } else {
+            final String[] valueLabelValues = labelValues.toArray(new String[0]);
+            valueLabelValues[valueSlot] = valueLabels[i];
+            samples.add(new Collector.MetricFamilySamples.Sample(
+                sampleName, labelNames, Arrays.asList(valueLabelValues), sampleValue));
+          }
+        }
+      }
+      if (table != null) {
+        family = table.family(queryName, query.type, query.help, samples);
+      }
+    } finally {
+      if (table != null) {
+        table.release();
+      }
+    }
+    if (truncated != null) {
+      truncate(query, rs, stats, truncated, pooled);
+    }
+    query.expectedSamples = samples.size();
+    if (stats != null) {
+      stats.rows = rows;
+      stats.samples = samples.size();
+    }
+
+    return Collections.singletonList(
+        family != null ? family : new Collector.MetricFamilySamples(queryName, query.type, query.help, samples));
+  }
+
+  /**
+   * Positions of a query's label and value columns in a result set, and how
+   * each value column is read. Zero marks a column that was not found.
+   * Resolved once per shape of the result set, and kept on the query for as
+   * long as its result sets keep the same column names and types.
+   */
+  static class Columns {
+    final String[] names;
+    final int[] types;
+    final List<String> labelNames;
+    final int[] labels;
+    final int[] values;
+    final int[] kinds;
+    final String[] valueLabels;  // Of each value column, when there are several, labeled after the label columns.
+
+    private Columns(String[] names,
+                    int[] types,
+                    List<String> labelNames,
+                    int[] labels,
+                    int[] values,
+                    int[] kinds,
+                    String[] valueLabels) {
+      this.names = names;
+      this.types = types;
+      this.labelNames = labelNames;
+      this.labels = labels;
+      this.values = values;
+      this.kinds = kinds;
+      this.valueLabels = valueLabels;
+    }
+
+    /**
+     * Same column names and types as the result set these were resolved
+     * from, so the same positions apply.
+     */
+    boolean matches(ResultSetMetaData metaData) throws SQLException {
+      if (metaData.getColumnCount() != names.length) {
+        return false;
+      }
+      for (int i = 0; i < names.length; i++) {
+        if (metaData.getColumnType(i + 1) != types[i] || !names[i].equals(metaData.getColumnLabel(i + 1))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    static Columns resolve(JdbcConfig.Query query, ResultSetMetaData metaData) throws SQLException {
+      final Columns cached = query.columns;
+      if (cached != null && cached.matches(metaData)) {
+        return cached;
+      }
+
+      final int count = metaData.getColumnCount();
+      final String[] names = new String[count];
+      final int[] types = new int[count];
+      for (int i = 0; i < count; i++) {
+        names[i] = metaData.getColumnLabel(i + 1);
+        types[i] = metaData.getColumnType(i + 1);
+      }
+      final Map<String, Integer> columns = columnIndexes(metaData);
+
+      final int[] valueColumns = new int[query.values.size()];
+      final int[] valueKinds = new int[query.values.size()];
+      for (int i = 0; i < valueColumns.length; i++) {
+        final String value = query.values.get(i).name;
+        valueColumns[i] = columns.getOrDefault(value.toUpperCase(Locale.ROOT), 0);
+        if (valueColumns[i] == 0) {
+          LOGGER.log(
+              Level.SEVERE,
+              String.format("Sample value %s not found as part of the query result set.", value));
+        } else {
+          valueKinds[i] = valueKind(types[valueColumns[i] - 1]);
+        }
+      }
+
+      final List<String> labelNames;
+      final int[] labelColumns;
+      if (query.allLabels) {
+        // Every column that is not a value, in result set order.
+        final Set<Integer> valueColumnSet = new HashSet<>();
+        for (int column : valueColumns) {
+          valueColumnSet.add(column);
+        }
+        final List<String> dynamicNames = new ArrayList<>();
+        final int[] dynamicColumns = new int[count];
+        int found = 0;
+        for (int column = 1; column <= count; column++) {
+          if (!valueColumnSet.contains(column)) {
+            dynamicColumns[found++] = column;
+            dynamicNames.add(labelName(names[column - 1]));
+          }
+        }
+        labelNames = Collections.unmodifiableList(dynamicNames);
+        labelColumns = Arrays.copyOf(dynamicColumns, found);
+      } else {
+        labelNames = query.labels;
+        labelColumns = new int[query.labels.size()];
+        for (int i = 0; i < labelColumns.length; i++) {
+          final String label = query.labels.get(i);
+          labelColumns[i] = columns.getOrDefault(label.toUpperCase(Locale.ROOT), 0);
+          if (labelColumns[i] == 0) {
+            LOGGER.log(
+                Level.WARNING,
+                String.format("Label %s not found as part of the query result set.", label));
+          }
+        }
+      }
+
+      String[] valueLabels = null;
+      List<String> allLabelNames = labelNames;
+      if (query.values.size() > 1) {
+        valueLabels = new String[query.values.size()];
+        for (int i = 0; i < valueLabels.length; i++) {
+          valueLabels[i] = query.values.get(i).name;
+        }
+        final List<String> withValueLabel = new ArrayList<>(labelNames);
+        withValueLabel.add(query.valueLabel);
+        allLabelNames = Collections.unmodifiableList(withValueLabel);
+      }
+
+      final Columns resolved =
+          new Columns(names, types, allLabelNames, labelColumns, valueColumns, valueKinds, valueLabels);
+      query.columns = resolved;
+      return resolved;
+    }
+  }
+
+  private static final Pattern INVALID_LABEL_CHARACTERS = Pattern.compile("[^a-zA-Z0-9_]");
+
+  /**
+   * Label name for a column, in lower case, with characters Prometheus does
+   * not allow replaced by `_`.
+   */
+  static String labelName(String column) {
+    final String name = INVALID_LABEL_CHARACTERS.matcher(column.toLowerCase(Locale.ROOT)).replaceAll("_");
+    return name.isEmpty() || Character.isDigit(name.charAt(0)) ? "_" + name : name;
+  }
+
+  private static final int DOUBLE_VALUE = 0;
+  private static final int LONG_VALUE = 1;
+  private static final int BOOLEAN_VALUE = 2;
+
+  /**
+   * Integer columns are read as `long` so large counters keep every digit
+   * that fits in a double. Everything else is read as `double`.
+   */
+  private static int valueKind(int sqlType) {
+    switch (sqlType) {
+      case Types.BIGINT:
+      case Types.INTEGER:
+      case Types.SMALLINT:
+      case Types.TINYINT:
+        return LONG_VALUE;
+      case Types.BIT:
+      case Types.BOOLEAN:
+        return BOOLEAN_VALUE;
+      default:
+        return DOUBLE_VALUE;
+    }
+  }
+
+  static double readValue(ResultSet rs, int column, int kind) throws SQLException {
+    switch (kind) {
+      case LONG_VALUE:
+        return rs.getLong(column);
+      case BOOLEAN_VALUE:
+        return rs.getBoolean(column) ? 1 : 0;
+      default:
+        return rs.getDouble(column);
+    }
+  }
+
+  /**
+   * Column positions by upper-cased label. As with `ResultSet.findColumn`,
+   * the first column wins when several share a label.
+   */
+  static Map<String, Integer> columnIndexes(ResultSetMetaData metaData) throws SQLException {
+    final int count = metaData.getColumnCount();
+    final Map<String, Integer> columns = new HashMap<>(count * 2);
+    for (int i = count; i >= 1; i--) {
+      columns.put(metaData.getColumnLabel(i).toUpperCase(Locale.ROOT), i);
+    }
+    return columns;
+  }
+
+  /**
+   * Fail a query with `labels: '*'` whose columns, once resolved, repeat a
+   * label name, e.g. a connection label or its `value_label`. Explicit
+   * labels are checked when the configuration is read.
+   */
+  static void checkLabelNames(JdbcConfig.Query query, List<String> labelNames) throws SQLException {
+    final Set<String> seen = new HashSet<>();
+    for (String name : labelNames) {
+      if (!seen.add(name)) {
+        throw new SQLException(String.format("Label `%s` of query %s is used more than once.", name, query.name));
+      }
+    }
+  }
+
+  /**
+   * Stop reading a result set that hit one of the query's limits. The
+   * statement is cancelled, so the database stops producing rows nobody
+   * will read, and dropped from the statements `pooled` caches, when given,
+   * as a cancelled statement is not reused.
+   */
+  static void truncate(JdbcConfig.Query query,
+                       ResultSet rs,
+                       JdbcQueryStats stats,
+                       String limit,
+                       JdbcConnectionPool.PooledConnection pooled)
+      throws SQLException {
+    LOGGER.warning(String.format("Query %s reached its `%s` limit, results are truncated.", query.name, limit));
+    if (stats != null) {
+      stats.truncated(limit);
+    }
+    final Statement statement = rs.getStatement();
+    // Batches run on a plain statement, cancelling it would lose the result sets of the queries after this one.
+    if (statement instanceof PreparedStatement) {
+      statement.cancel();
+      if (pooled != null) {
+        pooled.discard(query.query);
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs jobs in the background, each on its own interval, and keeps the latest
+ * samples of every job in a snapshot that scrapes can read without touching
+ * the database.
+ */
+class JdbcScheduler implements AutoCloseable {
+  private static final Logger LOGGER = Logger.getLogger(JdbcScheduler.class.getName());
+
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+  private final ScheduledExecutorService executor;
+  private final AtomicReference<Map<String, List<Collector.MetricFamilySamples>>> snapshot =
+      new AtomicReference<>(Collections.emptyMap());
+
+  JdbcScheduler(int threads) {
+    executor =
+        Executors.newScheduledThreadPool(Math.max(1, threads), runnable -> {
+          Thread thread = new Thread(runnable, "jdbc-scheduler-" + THREAD_COUNT.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * Run a job after `initialDelay` milliseconds and then every `interval`
+   * milliseconds after the previous run has finished.
+   */
+  void schedule(String jobName,
+                long initialDelay,
+                long interval,
+                Supplier<List<Collector.MetricFamilySamples>> runner) {
+    schedule(jobName, initialDelay, () -> interval, runner);
+  }
+
+  /**
+   * Run a job after `initialDelay` milliseconds and then again after the
+   * delay `nextDelay` returns once the previous run has finished, e.g. the
+   * job's interval with some jitter.
+   */
+  void schedule(String jobName,
+                long initialDelay,
+                LongSupplier nextDelay,
+                Supplier<List<Collector.MetricFamilySamples>> runner) {
+    final Runnable[] task = new Runnable[1];
+    task[0] = () -> {
+      try {
+        final List<Collector.MetricFamilySamples> mfsList =
+            Collections.unmodifiableList(runner.get());
+        snapshot.updateAndGet(previous -> {
+          Map<String, List<Collector.MetricFamilySamples>> next = new HashMap<>(previous);
+          next.put(jobName, mfsList);
+          return Collections.unmodifiableMap(next);
+        });
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.SEVERE, String.format("Error running scheduled JDBC job: %s", jobName), e);
+      }
+      try {
+        executor.schedule(task[0], nextDelay.getAsLong(), TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // Closed while the job was running.
+      }
+    };
+    executor.schedule(task[0], initialDelay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Serve a job from samples collected before this scheduler was created,
+   * until the job runs again.
+   */
+  void seed(String jobName, List<Collector.MetricFamilySamples> mfsList) {
+    snapshot.updateAndGet(previous -> {
+      Map<String, List<Collector.MetricFamilySamples>> next = new HashMap<>(previous);
+      next.putIfAbsent(jobName, mfsList);
+      return Collections.unmodifiableMap(next);
+    });
+  }
+
+  /**
+   * Latest samples collected for a job, or an empty list if it has not
+   * completed a run yet.
+   */
+  List<Collector.MetricFamilySamples> latest(String jobName) {
+    return snapshot.get().getOrDefault(jobName, Collections.emptyList());
+  }
+
+  /**
+   * Stop scheduling jobs. A job already running is left to finish, as its
+   * connections may be taken over by a newer configuration.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+}
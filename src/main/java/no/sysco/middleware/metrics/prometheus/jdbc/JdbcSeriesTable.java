@@ -0,0 +1,234 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Series produced by one query against one connection, kept from one run to
+ * the next. Rows are looked up by a hash of their raw label values, so a row
+ * seen before reuses the label values list of its series, and the sample of
+ * each value column as long as the value did not change. Series a run did
+ * not produce are dropped at its end.
+ *
+ * A table is used by one run at a time. A run that finds it in use, e.g. a
+ * probe running the same query as a scrape, builds its samples as usual.
+ */
+class JdbcSeriesTable {
+  private static final Entry[] EMPTY = new Entry[0];
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private String name;
+  private List<String> labelNames = Collections.emptyList();
+  private int valueCount;
+  private int valueSlot;
+  private String[] valueLabels;
+  private Entry[] buckets = EMPTY;
+  private int size;
+  private int generation;
+  private List<Collector.MetricFamilySamples.Sample> lastSamples = Collections.emptyList();
+  private Collector.MetricFamilySamples lastFamily;
+
+  /**
+   * Take the table for a run producing samples of `name`, labeled with
+   * `labelNames`, from `valueCount` value columns. With `valueLabels`, the
+   * sample of each value column has its own at `valueSlot` of the label
+   * values, which rows leave null. Series of earlier runs are forgotten
+   * when any of these changed. Returns false when another run holds the
+   * table.
+   */
+  boolean acquire(String name, List<String> labelNames, int valueCount, int valueSlot, String[] valueLabels) {
+    if (!lock.tryLock()) {
+      return false;
+    }
+    if (!name.equals(this.name)
+        || !labelNames.equals(this.labelNames)
+        || valueCount != this.valueCount
+        || valueSlot != this.valueSlot
+        || !Arrays.equals(valueLabels, this.valueLabels)) {
+      this.name = name;
+      this.labelNames = labelNames;
+      this.valueCount = valueCount;
+      this.valueSlot = valueSlot;
+      this.valueLabels = valueLabels;
+      buckets = new Entry[16];
+      size = 0;
+      lastSamples = Collections.emptyList();
+      lastFamily = null;
+    }
+    generation++;
+    return true;
+  }
+
+  /**
+   * Label names of the table's series, to be shared by their samples.
+   */
+  List<String> labelNames() {
+    return labelNames;
+  }
+
+  /**
+   * Series of a row's label values, found by value or added. The `row` array
+   * is only read, so it can be reused for the next row.
+   */
+  Entry entry(String[] row) {
+    int hash = 1;
+    for (String value : row) {
+      hash = 31 * hash + (value == null ? 0 : value.hashCode());
+    }
+    hash ^= hash >>> 16;  // As in HashMap, rows often differ in the last characters only.
+    final int bucket = hash & (buckets.length - 1);
+    for (Entry entry = buckets[bucket]; entry != null; entry = entry.next) {
+      if (entry.hash == hash && Arrays.equals(entry.values, row)) {
+        entry.generation = generation;
+        return entry;
+      }
+    }
+
+    final Entry entry = new Entry(hash, row.clone(), valueCount, buckets[bucket]);
+    entry.generation = generation;
+    buckets[bucket] = entry;
+    if (++size > buckets.length * 3 / 4) {
+      resize(buckets.length * 2);
+    }
+    return entry;
+  }
+
+  /**
+   * Sample of a series' `column`-th value column, reused as long as its
+   * value is the same. Samples are immutable, so a new value takes a new
+   * sample, which is kept for the next run.
+   */
+  Collector.MetricFamilySamples.Sample sample(Entry entry, int column, double value) {
+    final Collector.MetricFamilySamples.Sample previous = entry.samples[column];
+    if (previous != null && Double.doubleToLongBits(previous.value) == Double.doubleToLongBits(value)) {
+      return previous;
+    }
+    final Collector.MetricFamilySamples.Sample sample =
+        new Collector.MetricFamilySamples.Sample(name, labelNames, entry.labelValues(column, valueSlot, valueLabels), value);
+    entry.samples[column] = sample;
+    return sample;
+  }
+
+  /**
+   * Family of the samples of a run, the one of the previous run when it
+   * had the very same samples. A counter family copies its samples when
+   * built, so only a reused family keeps them from one run to the next.
+   */
+  Collector.MetricFamilySamples family(String familyName,
+                                       Collector.Type type,
+                                       String help,
+                                       List<Collector.MetricFamilySamples.Sample> samples) {
+    final Collector.MetricFamilySamples last = lastFamily;
+    if (last != null
+        && last.name.equals(familyName)
+        && last.type == type
+        && Objects.equals(last.help, help)
+        && sameSamples(samples)) {
+      return last;
+    }
+    lastSamples = samples;
+    lastFamily = new Collector.MetricFamilySamples(familyName, type, help, samples);
+    return lastFamily;
+  }
+
+  private boolean sameSamples(List<Collector.MetricFamilySamples.Sample> samples) {
+    if (samples.size() != lastSamples.size()) {
+      return false;
+    }
+    for (int i = 0; i < samples.size(); i++) {
+      if (samples.get(i) != lastSamples.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * End a run, dropping the series it did not produce, and hand the table
+   * over to the next run.
+   */
+  void release() {
+    try {
+      for (int i = 0; i < buckets.length; i++) {
+        Entry previous = null;
+        for (Entry entry = buckets[i]; entry != null; entry = entry.next) {
+          if (entry.generation == generation) {
+            previous = entry;
+          } else if (previous == null) {
+            buckets[i] = entry.next;
+            size--;
+          } else {
+            previous.next = entry.next;
+            size--;
+          }
+        }
+      }
+      if (buckets.length > 16 && size < buckets.length / 8) {
+        resize(Math.max(16, Integer.highestOneBit(size * 2) * 2));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void resize(int capacity) {
+    final Entry[] resized = new Entry[capacity];
+    for (Entry head : buckets) {
+      Entry entry = head;
+      while (entry != null) {
+        final Entry next = entry.next;
+        final int bucket = entry.hash & (capacity - 1);
+        entry.next = resized[bucket];
+        resized[bucket] = entry;
+        entry = next;
+      }
+    }
+    buckets = resized;
+  }
+
+  static final class Entry {
+    private final int hash;
+    private final String[] values;
+    final List<String> labelValues;
+    private List<String>[] columnLabelValues;
+    private final Collector.MetricFamilySamples.Sample[] samples;
+    private int generation;
+    private Entry next;
+
+    private Entry(int hash, String[] values, int valueCount, Entry next) {
+      this.hash = hash;
+      this.values = values;
+      this.labelValues = Collections.unmodifiableList(Arrays.asList(values));
+      this.samples = new Collector.MetricFamilySamples.Sample[valueCount];
+      this.next = next;
+    }
+
+    /**
+     * Label values of the sample of a value column, kept with the series.
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> labelValues(int column, int valueSlot, String[] valueLabels) {
+      if (valueLabels == null) {
+        return labelValues;
+      }
+      if (columnLabelValues == null) {
+        columnLabelValues = new List[valueLabels.length];
+      }
+      if (columnLabelValues[column] == null) {
+        final String[] withValueLabel = values.clone();
+        withValueLabel[valueSlot] = valueLabels[column];
+        columnLabelValues[column] = Collections.unmodifiableList(Arrays.asList(withValueLabel));
+      }
+      return columnLabelValues[column];
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Single-flight of a streamed query against one connection. A run keeps the
+ * lines it writes, up to `MAX_SHARED_CHARS`, only when other scrapes can use
+ * them: with a `min_interval`, or once a scrape joins it before its first
+ * line. Those scrapes write the same lines instead of running the query
+ * again. The lines are released once the scrapes that joined have written
+ * them and `min_interval` has passed. A run writing more than that is not
+ * shared, and scrapes that waited for it run the query on their own.
+ */
+class JdbcStreamFlight {
+  static final int MAX_SHARED_CHARS = 4 * 1024 * 1024;
+
+  private static final ScheduledExecutorService RELEASES =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jdbc-stream-release");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private final AtomicReference<Run> current = new AtomicReference<>();
+
+  /**
+   * The run to share, in progress or completed less than `minInterval`
+   * milliseconds ago, as long as it is written in the same `contentType`.
+   * The caller writes its `text()` and then `release`s it.
+   * Otherwise a new run, that the caller must execute and `complete`, or
+   * `abandon` if it fails to write.
+   * Runs in progress are waited for until `deadline`, in nanoseconds, or
+   * for as long as they take without one.
+   */
+  Run join(String contentType, long minInterval, long deadline) {
+    while (true) {
+      final Run last = current.get();
+      if (last != null && last.contentType.equals(contentType) && last.attach()) {
+        if (last.await(deadline)) {
+          return last;
+        }
+        last.release();
+        return new Run(contentType, minInterval);
+      }
+      final Run run = new Run(contentType, minInterval);
+      if (current.compareAndSet(last, run)) {
+        return run;
+      }
+    }
+  }
+
+  /**
+   * A run of the query, and the lines it wrote while they can be shared.
+   */
+  static final class Run {
+    private final String contentType;
+    private final long minInterval;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private final StringBuilder text = new StringBuilder();
+    // Guarded by this.
+    private boolean keeping;
+    private boolean started;
+    private boolean shareable = true;
+    private boolean expired;
+    private int joined;
+    // Only used by the thread executing the run: nothing is kept from here on.
+    private boolean passThrough;
+    private volatile boolean succeeded;
+
+    private Run(String contentType, long minInterval) {
+      this.contentType = contentType;
+      this.minInterval = minInterval;
+      this.keeping = minInterval > 0L;
+    }
+
+    /**
+     * Whether this run already completed, its lines to be written with
+     * `text()`. Otherwise it is for the caller to execute.
+     */
+    boolean isShared() {
+      return done.isDone();
+    }
+
+    boolean succeeded() {
+      return succeeded;
+    }
+
+    CharSequence text() {
+      return text;
+    }
+
+    /**
+     * Writer sending the lines of this run to `out`, and keeping them while
+     * they can be shared and fit.
+     */
+    Writer capture(Writer out) {
+      return new Writer() {
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+          out.write(chars, offset, length);
+          if (!passThrough) {
+            keep(chars, offset, length);
+          }
+        }
+
+        @Override
+        public void write(String string, int offset, int length) throws IOException {
+          out.write(string, offset, length);
+          if (!passThrough) {
+            keep(string, offset, length);
+          }
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+          out.write(c);
+          if (!passThrough) {
+            keep(String.valueOf((char) c), 0, 1);
+          }
+        }
+
+        @Override
+        public void flush() throws IOException {
+          out.flush();
+        }
+
+        @Override
+        public void close() {
+          // The response is closed by whoever opened it.
+        }
+      };
+    }
+
+    private synchronized void keep(char[] chars, int offset, int length) {
+      if (keepable(length)) {
+        text.append(chars, offset, length);
+      }
+    }
+
+    private synchronized void keep(String string, int offset, int length) {
+      if (keepable(length)) {
+        text.append(string, offset, offset + length);
+      }
+    }
+
+    private boolean keepable(int length) {
+      started = true;
+      if (keeping && shareable && text.length() + length <= MAX_SHARED_CHARS) {
+        return true;
+      }
+      // No scrape can join a run that has started without keeping its lines.
+      drop();
+      passThrough = true;
+      return false;
+    }
+
+    private void drop() {
+      shareable = false;
+      text.setLength(0);
+      text.trimToSize();
+    }
+
+    /**
+     * Join this run, unless it cannot be shared: it keeps no lines, or
+     * completed longer than `min_interval` ago.
+     */
+    private synchronized boolean attach() {
+      if (!shareable || expired) {
+        return false;
+      }
+      if (!keeping) {
+        if (started) {
+          return false;
+        }
+        keeping = true;
+      }
+      joined++;
+      return true;
+    }
+
+    /**
+     * Done writing the lines of a run joined with `join`.
+     */
+    synchronized void release() {
+      joined--;
+      if (joined == 0 && expired) {
+        drop();
+      }
+    }
+
+    private synchronized void expire() {
+      expired = true;
+      if (joined == 0) {
+        drop();
+      }
+    }
+
+    /**
+     * End a run that could not write all its lines, so it is not shared.
+     */
+    void abandon() {
+      synchronized (this) {
+        drop();
+      }
+      complete(false);
+    }
+
+    /**
+     * End a run, handing its lines to the scrapes waiting for it, and to
+     * those joining within `min_interval`.
+     */
+    void complete(boolean succeeded) {
+      this.succeeded = succeeded;
+      done.complete(null);
+      if (minInterval > 0L) {
+        RELEASES.schedule(this::expire, minInterval, TimeUnit.MILLISECONDS);
+      } else {
+        expire();
+      }
+    }
+
+    private boolean await(long deadline) {
+      try {
+        if (deadline == JdbcJobRun.NO_DEADLINE) {
+          done.get();
+        } else {
+          done.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        synchronized (this) {
+          return shareable;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } catch (ExecutionException | TimeoutException e) {
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the samples of queries with `stream: true` to the exposition as
+ * their rows are read, instead of collecting them first.
+ */
+class JdbcStreamer {
+  private static final Logger LOGGER = Logger.getLogger(JdbcStreamer.class.getName());
+
+  /**
+   * Run the queries that have `stream` enabled, of the job named `jobName`
+   * and against connections to `target` (all when null), writing every row
+   * to `encoder` as soon as it is read. Only one row is held in memory at a
+   * time, whatever the size of the result set.
+   *
+   * Each query runs once per connection for concurrent scrapes that join
+   * it before its first line, and for those within `minInterval`
+   * milliseconds after it, in the same format: they write the lines of that
+   * run, unless it wrote more than {@link JdbcStreamFlight#MAX_SHARED_CHARS}.
+   *
+   * Failures are reported after the streamed families, in
+   * `jdbc_query_stream_error`, as samples already written cannot be taken
+   * back.
+   */
+  static void stream(List<JdbcConfig.JdbcJob> jobs,
+                     long scrapeTimeout,
+                     long minInterval,
+                     JdbcTextEncoder encoder,
+                     String jobName,
+                     String target)
+      throws IOException {
+    // Queries of the same name, in any job or connection, are written as one family.
+    final Map<String, List<Map.Entry<JdbcConfig.JdbcJob, JdbcConfig.Query>>> families = new LinkedHashMap<>();
+    for (JdbcConfig.JdbcJob job : jobs) {
+      if (jobName != null && !jobName.equals(job.name)) {
+        continue;
+      }
+      for (JdbcConfig.Query query : job.queries) {
+        if (query.stream) {
+          families.computeIfAbsent(query.metricName, key -> new ArrayList<>())
+              .add(new AbstractMap.SimpleImmutableEntry<>(job, query));
+        }
+      }
+    }
+    if (families.isEmpty()) {
+      return;
+    }
+
+    final long deadline = scrapeTimeout > 0L ? JdbcJobRun.deadlineAfter(scrapeTimeout) : JdbcJobRun.NO_DEADLINE;
+    final List<String> labelNames = Arrays.asList("job", "connection", "query");
+    final List<String[]> streamedLabels = new ArrayList<>();
+    final List<Boolean> streamedFailures = new ArrayList<>();
+    for (List<Map.Entry<JdbcConfig.JdbcJob, JdbcConfig.Query>> family : families.values()) {
+      final JdbcConfig.Query first = family.get(0).getValue();
+      encoder.family(first.metricName, first.type, first.help);
+      for (Map.Entry<JdbcConfig.JdbcJob, JdbcConfig.Query> entry : family) {
+        final JdbcConfig.JdbcJob job = entry.getKey();
+        final JdbcConfig.Query query = entry.getValue();
+        for (JdbcConfig.JdbcConnection connection : job.connections) {
+          if (target != null && !target.equals(connection.url)) {
+            continue;
+          }
+          streamedFailures.add(!shareQuery(encoder, connection, query, minInterval, deadline));
+          streamedLabels.add(new String[]{job.name, connection.url, query.name});
+        }
+      }
+    }
+
+    encoder.family(
+        "jdbc_query_stream_error",
+        Collector.Type.GAUGE,
+        "Non-zero if this streamed query failed, its samples may be incomplete.");
+    for (int i = 0; i < streamedLabels.size(); i++) {
+      encoder.sample("jdbc_query_stream_error", labelNames, streamedLabels.get(i), streamedFailures.get(i) ? 1 : 0);
+    }
+  }
+
+  /**
+   * Write the samples of a streamed query from the run shared with other
+   * scrapes, or run it.
+   */
+  private static boolean shareQuery(JdbcTextEncoder encoder,
+                                    JdbcConfig.JdbcConnection connection,
+                                    JdbcConfig.Query query,
+                                    long minInterval,
+                                    long deadline)
+      throws IOException {
+    final JdbcStreamFlight.Run run =
+        connection.stats(query.name).flight.join(encoder.contentType(), minInterval, deadline);
+    if (run.isShared()) {
+      try {
+        encoder.write(run.text());
+        return run.succeeded();
+      } finally {
+        run.release();
+      }
+    }
+    boolean written = false;
+    try {
+      final boolean succeeded = streamQuery(
+          new JdbcTextEncoder(run.capture(encoder.writer()), encoder.contentType()), connection, query, deadline);
+      written = true;
+      run.complete(succeeded);
+      return succeeded;
+    } finally {
+      if (!written) {
+        run.abandon();
+      }
+    }
+  }
+
+  /**
+   * Write the samples of a streamed query as its rows are read. The query
+   * runs outside auto-commit, as drivers such as PostgreSQL otherwise read
+   * the whole result set at once whatever the fetch size, and is cancelled
+   * once the scrape `deadline` passes, rows still unread included.
+   */
+  private static boolean streamQuery(JdbcTextEncoder encoder,
+                                     JdbcConfig.JdbcConnection connection,
+                                     JdbcConfig.Query query,
+                                     long deadline)
+      throws IOException {
+    final JdbcQueryStats stats = connection.stats(query.name);
+    long timeout = query.timeout > 0L ? query.timeout : connection.timeout;
+    long borrowTimeout = connection.poolSettings.borrowTimeout;
+    if (deadline != JdbcJobRun.NO_DEADLINE) {
+      final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0L) {
+        LOGGER.warning(String.format("Streamed query %s skipped, the scrape ran out of time.", query.name));
+        return false;
+      }
+      timeout = timeout > 0L ? Math.min(timeout, remaining) : remaining;
+      borrowTimeout = Math.min(borrowTimeout, remaining);
+    }
+
+    if (!connection.breaker.allow()) {
+      return false;
+    }
+
+    try (JdbcConnectionPool.PooledConnection pooled = connection.pool.borrow(borrowTimeout)) {
+      connection.breaker.success();
+      boolean autoCommit = false;
+      ScheduledFuture<?> expiry = null;
+      try {
+        autoCommit = pooled.connection().getAutoCommit();
+        if (autoCommit) {
+          pooled.connection().setAutoCommit(false);
+        }
+        final PreparedStatement statement = pooled.prepare(query.query);
+        statement.setQueryTimeout(JdbcJobRun.timeoutSeconds(timeout));
+        statement.setFetchSize(query.fetchSize);
+        if (deadline != JdbcJobRun.NO_DEADLINE) {
+          expiry = JdbcJobRun.TIMEOUTS.schedule(() -> {
+            try {
+              statement.cancel();
+            } catch (SQLException e) {
+              LOGGER.log(Level.WARNING, "Error cancelling statement.", e);
+            }
+          }, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        final long queryStart = System.nanoTime();
+        try (ResultSet rs = statement.executeQuery()) {
+          final JdbcSamples.Columns columns = JdbcSamples.Columns.resolve(query, rs.getMetaData());
+          final String sampleName =
+              query.type == Collector.Type.COUNTER ? query.metricName + "_total" : query.metricName;
+          final List<String> labelNames = connection.labels.appendTo(columns.labelNames);
+          if (query.allLabels) {
+            JdbcSamples.checkLabelNames(query, labelNames);
+          }
+          final int valueSlot = columns.labels.length;
+          final String[] labelValues = new String[columns.labelNames.size() + connection.labels.values.length];
+          System.arraycopy(
+              connection.labels.values, 0, labelValues, columns.labelNames.size(), connection.labels.values.length);
+          final JdbcConfig.Limits limits = query.limits;
+          final Set<List<String>> series = limits.maxSeries > 0 ? new HashSet<>() : null;
+          long rows = 0L;
+          long samples = 0L;
+          String truncated = null;
+
+          rows:
+          while (rs.next()) {
+            if (limits.maxRows > 0L && rows >= limits.maxRows) {
+              truncated = "max_rows";
+              break;
+            }
+            rows++;
+            for (int i = 0; i < columns.labels.length; i++) {
+              labelValues[i] = columns.labels[i] == 0 ? "" : rs.getString(columns.labels[i]);
+            }
+            if (columns.valueLabels != null) {
+              labelValues[valueSlot] = null;
+            }
+            if (series != null
+                && series.add(Arrays.asList(labelValues.clone()))
+                && series.size() > limits.maxSeries) {
+              truncated = "max_series";
+              break;
+            }
+            for (int i = 0; i < columns.values.length; i++) {
+              if (columns.values[i] == 0) {
+                continue;
+              }
+              if (limits.maxSamples > 0L && samples >= limits.maxSamples) {
+                truncated = "max_samples";
+                break rows;
+              }
+              double sampleValue = JdbcSamples.readValue(rs, columns.values[i], columns.kinds[i]);
+              if (rs.wasNull()) {
+                final Double defaultValue = query.values.get(i).defaultValue;
+                if (defaultValue == null) {
+                  continue;
+                }
+                sampleValue = defaultValue;
+              }
+              if (columns.valueLabels != null) {
+                labelValues[valueSlot] = columns.valueLabels[i];
+              }
+              encoder.sample(sampleName, labelNames, labelValues, sampleValue);
+              samples++;
+            }
+          }
+          if (truncated != null) {
+            JdbcSamples.truncate(query, rs, stats, truncated, pooled);
+          }
+          stats.rows = rows;
+          stats.samples = samples;
+        } finally {
+          stats.observe(System.nanoTime() - queryStart);
+        }
+        return true;
+      } catch (SQLException e) {
+        pooled.discard(query.query);
+        stats.error(e.getSQLState());
+        if (e instanceof SQLTimeoutException
+            || (deadline != JdbcJobRun.NO_DEADLINE && deadline - System.nanoTime() <= 0L)) {
+          LOGGER.warning(String.format("Streamed query timed out: %s", query.query));
+        } else if (JdbcConnectionPool.isConnectionError(e)) {
+          pooled.invalidate();
+          connection.breaker.failure(e);
+        } else {
+          LOGGER.log(Level.SEVERE, String.format("Error streaming query: %s", query.query), e);
+        }
+        return false;
+      } finally {
+        if (expiry != null) {
+          expiry.cancel(false);
+        }
+        if (autoCommit) {
+          restoreAutoCommit(pooled);
+        }
+      }
+    } catch (SQLException e) {
+      connection.error(e.getSQLState());
+      connection.borrowFailed(e);
+      return false;
+    }
+  }
+
+  /**
+   * End the transaction a streamed query ran in, and hand its connection
+   * back to the pool in auto-commit mode, or discard it.
+   */
+  private static void restoreAutoCommit(JdbcConnectionPool.PooledConnection pooled) {
+    try {
+      pooled.connection().rollback();
+      pooled.connection().setAutoCommit(true);
+    } catch (SQLException e) {
+      LOGGER.log(Level.WARNING, "Error restoring auto-commit, connection discarded.", e);
+      pooled.invalidate();
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes metric families one sample at a time, in the Prometheus text format
+ * or in OpenMetrics, so samples never have to be held in memory. Output
+ * matches what {@link TextFormat} writes for the same families.
+ */
+class JdbcTextEncoder {
+  private final Writer writer;
+  private final String contentType;
+  private final boolean openMetrics;
+
+  JdbcTextEncoder(Writer writer, String contentType) {
+    this.writer = writer;
+    this.contentType = contentType;
+    this.openMetrics = TextFormat.CONTENT_TYPE_OPENMETRICS_100.equals(contentType);
+  }
+
+  Writer writer() {
+    return writer;
+  }
+
+  String contentType() {
+    return contentType;
+  }
+
+  /**
+   * Write lines already encoded in the same format, such as those of a
+   * shared run.
+   */
+  void write(CharSequence text) throws IOException {
+    writer.append(text);
+  }
+
+  /**
+   * Start a family. Its samples must follow before the next family starts.
+   * Counter families are named without, and their samples with, `_total`.
+   */
+  void family(String name, Collector.Type type, String help) throws IOException {
+    if (openMetrics) {
+      writeType(name, type);
+      writeHelp(name, help);
+    } else {
+      final String familyName = type == Collector.Type.COUNTER ? name + "_total" : name;
+      writeHelp(familyName, help);
+      writeType(familyName, type);
+    }
+  }
+
+  private void writeHelp(String name, String help) throws IOException {
+    writer.write("# HELP ");
+    writer.write(name);
+    writer.write(' ');
+    writeEscaped(help, openMetrics);
+    writer.write('\n');
+  }
+
+  private void writeType(String name, Collector.Type type) throws IOException {
+    writer.write("# TYPE ");
+    writer.write(name);
+    writer.write(' ');
+    writer.write(typeString(type));
+    writer.write('\n');
+  }
+
+  /**
+   * Write a sample of the current family. Only the first `labelNames.size()`
+   * label values are used, so a row buffer can be reused between samples.
+   */
+  void sample(String name, List<String> labelNames, String[] labelValues, double value) throws IOException {
+    writer.write(name);
+    if (!labelNames.isEmpty()) {
+      writer.write('{');
+      for (int i = 0; i < labelNames.size(); i++) {
+        if (i > 0 && openMetrics) {
+          writer.write(',');
+        }
+        writer.write(labelNames.get(i));
+        writer.write("=\"");
+        writeEscaped(labelValues[i] == null ? "" : labelValues[i], true);
+        writer.write('"');
+        if (!openMetrics) {
+          writer.write(',');
+        }
+      }
+      writer.write('}');
+    }
+    writer.write(' ');
+    writer.write(Collector.doubleToGoString(value));
+    writer.write('\n');
+  }
+
+  private String typeString(Collector.Type type) {
+    switch (type) {
+      case GAUGE:
+        return "gauge";
+      case COUNTER:
+        return "counter";
+      case SUMMARY:
+        return "summary";
+      case HISTOGRAM:
+        return "histogram";
+      default:
+        return openMetrics ? "unknown" : "untyped";
+    }
+  }
+
+  private void writeEscaped(String value, boolean escapeQuotes) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          writer.write("\\\\");
+          break;
+        case '\n':
+          writer.write("\\n");
+          break;
+        case '"':
+          writer.write(escapeQuotes ? "\\\"" : "\"");
+          break;
+        default:
+          writer.write(c);
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Probe endpoint, `/probe?job=<job>&target=<connection url>`, that runs only
+ * the selected job and/or connection. Both parameters are optional, but at
+ * least one is required.
+ */
+class ProbeServlet extends HttpServlet {
+  private final JdbcCollector collector;
+
+  ProbeServlet(JdbcCollector collector) {
+    this.collector = collector;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    final String job = emptyToNull(req.getParameter("job"));
+    final String target = emptyToNull(req.getParameter("target"));
+    if (job == null && target == null) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Parameter `job` or `target` is required.");
+      return;
+    }
+
+    final List<Collector.MetricFamilySamples> mfsList;
+    try {
+      mfsList = collector.probe(job, target);
+    } catch (IllegalArgumentException e) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+      return;
+    }
+
+    final String contentType = TextFormat.chooseContentType(req.getHeader("Accept"));
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setContentType(contentType);
+    try (Writer writer = new BufferedWriter(resp.getWriter())) {
+      collector.stream(new JdbcTextEncoder(writer, contentType), job, target);
+      TextFormat.writeFormat(contentType, writer, Collections.enumeration(mfsList));
+    }
+  }
+
+  private static String emptyToNull(String value) {
+    return value == null || value.isEmpty() ? null : value;
+  }
+}
@@ -0,0 +1,35 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Readiness endpoint, `/ready`. Answers `503` until the connections have
+ * been warmed up, then `200`, listing the problems found while warming up.
+ */
+class ReadyServlet extends HttpServlet {
+  private final JdbcCollector collector;
+
+  ReadyServlet(JdbcCollector collector) {
+    this.collector = collector;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    resp.setContentType("text/plain; charset=utf-8");
+    if (!collector.isReady()) {
+      resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      resp.getWriter().println("Warming up.");
+      return;
+    }
+    resp.setStatus(HttpServletResponse.SC_OK);
+    final PrintWriter writer = resp.getWriter();
+    writer.println("Ready.");
+    for (String problem : collector.warmUpProblems()) {
+      writer.println(problem);
+    }
+  }
+}
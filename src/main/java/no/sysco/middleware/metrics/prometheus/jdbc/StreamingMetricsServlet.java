@@ -0,0 +1,56 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Metrics endpoint that writes streamed queries row by row, ahead of the
+ * samples collected by the registry. Requests filtered by `name[]` only get
+ * collected samples.
+ *
+ * Requests are served blocking, on the server's bounded thread pool. JDBC
+ * calls block whatever the servlet API, so an asynchronous request would
+ * only move the wait to another pool; concurrent scrapes share one
+ * collection instead, and a thread waits on it for at most the
+ * `scrape_timeout`. Streamed queries hold one row at a time, plus the text
+ * shared with concurrent scrapes. Collected queries are built whole, as
+ * the registry's families, before any of them is written. The response
+ * itself is flushed every `output_buffer_size` bytes.
+ */
+class StreamingMetricsServlet extends HttpServlet {
+  private final CollectorRegistry registry;
+  private final JdbcCollector collector;
+
+  StreamingMetricsServlet(CollectorRegistry registry, JdbcCollector collector) {
+    this.registry = registry;
+    this.collector = collector;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    final String contentType = TextFormat.chooseContentType(req.getHeader("Accept"));
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setContentType(contentType);
+
+    final String[] names = req.getParameterValues("name[]");
+    try (Writer writer = new BufferedWriter(resp.getWriter())) {
+      if (names == null) {
+        // Streamed first, as the OpenMetrics writer ends the exposition.
+        collector.stream(new JdbcTextEncoder(writer, contentType), null, null);
+        TextFormat.writeFormat(contentType, writer, registry.metricFamilySamples());
+      } else {
+        TextFormat.writeFormat(
+            contentType, writer, registry.filteredMetricFamilySamples(new HashSet<>(Arrays.asList(names))));
+      }
+    }
+  }
+}
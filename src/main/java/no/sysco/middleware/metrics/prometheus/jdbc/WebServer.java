@@ -1,12 +1,26 @@
 package no.sysco.middleware.metrics.prometheus.jdbc;
 
-import io.prometheus.client.exporter.MetricsServlet;
+import io.prometheus.client.CollectorRegistry;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.yaml.snakeyaml.Yaml;
 
 import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
 import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 public class WebServer {
 
@@ -28,14 +42,115 @@ public class WebServer {
        socket = new InetSocketAddress(port);
      }
 
-     new JdbcCollector(new File(args[1])).register();
+     File configFile = new File(args[1]);
+     JdbcCollector collector = new JdbcCollector(configFile).start().register();
 
-     Server server = new Server(socket);
-     ServletContextHandler context = new ServletContextHandler();
-     context.setContextPath("/");
-     server.setHandler(context);
-     context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
+     Server server = createServer(socket, Settings.load(configFile), collector);
      server.start();
      server.join();
    }
+
+   /**
+    * HTTP server exposing `/metrics`, `/probe`, `/ready` and `/history`.
+    * Requests are served blocking by a bounded pool of worker threads with a
+    * bounded queue, so slow scrapers cannot exhaust threads. Responses are
+    * flushed every `output_buffer_size` bytes; only streamed queries are
+    * written as their rows are read, collected families are built whole
+    * before they are written.
+    */
+   static Server createServer(InetSocketAddress socket, Settings settings, JdbcCollector collector) {
+     QueuedThreadPool threads =
+         new QueuedThreadPool(
+             settings.maxThreads,
+             Math.min(settings.maxThreads, 4),
+             (int) settings.idleTimeout,
+             new BlockingArrayQueue<>(settings.queueSize));
+     threads.setName("jdbc-http");
+     Server server = new Server(threads);
+
+     HttpConfiguration http = new HttpConfiguration();
+     http.setOutputBufferSize(settings.outputBufferSize);
+     http.setSendServerVersion(false);
+
+     ServerConnector connector = new ServerConnector(server, 1, 1, new HttpConnectionFactory(http));
+     connector.setHost(socket.getAddress() == null || socket.getAddress().isAnyLocalAddress() ? null : socket.getHostString());
+     connector.setPort(socket.getPort());
+     connector.setIdleTimeout(settings.idleTimeout);
+     server.addConnector(connector);
+
+     ServletContextHandler context = new ServletContextHandler();
+     context.setContextPath("/");
+     context.addServlet(
+         new ServletHolder(new StreamingMetricsServlet(CollectorRegistry.defaultRegistry, collector)), "/metrics");
+     context.addServlet(new ServletHolder(new ProbeServlet(collector)), "/probe");
+     context.addServlet(new ServletHolder(new ReadyServlet(collector)), "/ready");
+     context.addServlet(new ServletHolder(new HistoryServlet(collector)), "/history");
+
+     if (settings.gzip) {
+       GzipHandler gzip = new GzipHandler();
+       gzip.setIncludedMethods("GET");
+       gzip.setMinGzipSize(1024);
+       gzip.setHandler(context);
+       server.setHandler(gzip);
+     } else {
+       server.setHandler(context);
+     }
+     return server;
+   }
+
+   /**
+    * HTTP server settings, from the `server` section of the configuration
+    * file. Read once at startup, they are not reloaded.
+    */
+   static class Settings {
+     int maxThreads = 16;
+     int queueSize = 64;
+     long idleTimeout = TimeUnit.SECONDS.toMillis(30);
+     int outputBufferSize = 32 * 1024;
+     boolean gzip = true;
+
+     static Settings load(File configFile) throws IOException {
+       try (Reader reader = new FileReader(configFile)) {
+         Map<String, Object> yaml = (Map<String, Object>) new Yaml().load(reader);
+         return parse(Optional.ofNullable(yaml).orElse(new HashMap<>()));
+       }
+     }
+
+     static Settings parse(Map<String, Object> yamlConfig) {
+       Settings settings = new Settings();
+       if (!yamlConfig.containsKey("server")) {
+         return settings;
+       }
+       final Map<String, Object> serverObject =
+           Optional.ofNullable((Map<String, Object>) yamlConfig.get("server"))
+               .orElse(new HashMap<>());
+
+       if (serverObject.containsKey("max_threads")) {
+         settings.maxThreads = (Integer) serverObject.get("max_threads");
+         // Jetty needs a thread for the acceptor and the selector, on top of the request threads.
+         if (settings.maxThreads < 4) {
+           throw new IllegalArgumentException("JDBC Server `max_threads` must be at least 4.");
+         }
+       }
+       if (serverObject.containsKey("queue_size")) {
+         settings.queueSize = (Integer) serverObject.get("queue_size");
+         if (settings.queueSize < 1) {
+           throw new IllegalArgumentException("JDBC Server `queue_size` must be at least 1.");
+         }
+       }
+       if (serverObject.containsKey("idle_timeout")) {
+         settings.idleTimeout = JdbcConfig.parseDuration(serverObject.get("idle_timeout"));
+       }
+       if (serverObject.containsKey("output_buffer_size")) {
+         settings.outputBufferSize = (Integer) serverObject.get("output_buffer_size");
+         if (settings.outputBufferSize < 1024) {
+           throw new IllegalArgumentException("JDBC Server `output_buffer_size` must be at least 1024.");
+         }
+       }
+       if (serverObject.containsKey("gzip")) {
+         settings.gzip = (Boolean) serverObject.get("gzip");
+       }
+       return settings;
+     }
+   }
 }
@@ -1,11 +1,30 @@
 package no.sysco.middleware.metrics.prometheus.jdbc;
 
+import io.prometheus.client.Collector;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
 
 /**
  *
@@ -27,4 +46,170 @@ public class JdbcCollectorTest {
     });
 
   }
-}
\ No newline at end of file
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static String config(int value) {
+    return "jobs:\n" +
+        "- name: \"watched\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:watch_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: watched\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select " + value + " as v\n";
+  }
+
+  private static double watchedValue(JdbcCollector collector) {
+    return collector.collect().stream()
+        .filter(mfs -> mfs.name.equals("jdbc_watched"))
+        .flatMap(mfs -> mfs.samples.stream())
+        .mapToDouble(sample -> sample.value)
+        .findFirst()
+        .orElse(Double.NaN);
+  }
+
+  @Test
+  public void testConfigShouldReloadWhenFileChanges() throws IOException, InterruptedException {
+    File config = folder.newFile("config.yml");
+    Files.write(config.toPath(), config(1).getBytes(StandardCharsets.UTF_8));
+
+    try (JdbcCollector collector = new JdbcCollector(config).start()) {
+      assertEquals(1.0, watchedValue(collector), 0.0);
+
+      Files.write(config.toPath(), config(2).getBytes(StandardCharsets.UTF_8));
+      assertTrue(config.setLastModified(config.lastModified() + 2_000L));
+
+      long deadline = System.currentTimeMillis() + 30_000L;
+      while (watchedValue(collector) != 2.0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(100L);
+      }
+      assertEquals(2.0, watchedValue(collector), 0.0);
+    }
+  }
+
+  private static String slowConfig(int value) {
+    final StringBuilder config = new StringBuilder("jobs:\n" +
+        "- name: \"reloaded\"\n" +
+        "  parallelism: 2\n" +
+        "  connections:\n");
+    for (int i = 0; i < 3; i++) {
+      config.append("  - url: \"jdbc:h2:mem:reload_test_").append(i)
+          .append(";INIT=CREATE ALIAS IF NOT EXISTS SLEEP FOR 'java.lang.Thread.sleep'\"\n")
+          .append("    username: sa\n")
+          .append("    password: ''\n")
+          .append("    labels:\n")
+          .append("      instance: '").append(i).append("'\n");
+    }
+    return config.append("  queries:\n" +
+        "  - name: reloaded\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select " + value + " as v, sleep(500) as s\n").toString();
+  }
+
+  @Test
+  public void testReloadShouldLetScrapesInProgressComplete() throws Exception {
+    File config = folder.newFile("reloaded.yml");
+    Files.write(config.toPath(), slowConfig(1).getBytes(StandardCharsets.UTF_8));
+    try (JdbcCollector collector = new JdbcCollector(config)) {
+      final ExecutorService scrapers = Executors.newFixedThreadPool(2);
+      try {
+        // Three connections on two threads, so one lane is still queued when the job is replaced.
+        final Future<List<Collector.MetricFamilySamples>> scrape = scrapers.submit(() -> collector.collect());
+        Thread.sleep(200L);
+        final Future<List<Collector.MetricFamilySamples>> shared = scrapers.submit(() -> collector.collect());
+        Files.write(config.toPath(), slowConfig(2).getBytes(StandardCharsets.UTF_8));
+        collector.reloadConfig();
+
+        for (List<Collector.MetricFamilySamples> mfsList : Arrays.asList(
+            scrape.get(10, TimeUnit.SECONDS), shared.get(10, TimeUnit.SECONDS))) {
+          assertEquals(3L, mfsList.stream()
+              .filter(mfs -> mfs.name.equals("jdbc_reloaded"))
+              .flatMap(mfs -> mfs.samples.stream())
+              .filter(sample -> sample.value == 1.0)
+              .count());
+        }
+      } finally {
+        scrapers.shutdown();
+      }
+      assertEquals(2.0, collector.collect().stream()
+          .filter(mfs -> mfs.name.equals("jdbc_reloaded"))
+          .flatMap(mfs -> mfs.samples.stream())
+          .mapToDouble(sample -> sample.value)
+          .findFirst()
+          .orElse(Double.NaN), 0.0);
+    }
+  }
+
+  /**
+   * Called from H2 to make a query slow enough for scrapes to overlap.
+   */
+  public static long slow(long value) throws InterruptedException {
+    Thread.sleep(500L);
+    return value;
+  }
+
+  private static String sharedConfig(String database, String options) throws SQLException {
+    final String url = "jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1";
+    try (Connection connection = DriverManager.getConnection(url, "sa", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute("create sequence runs");
+      statement.execute("create alias slow for \"" + JdbcCollectorTest.class.getName() + ".slow\"");
+    }
+    return options +
+        "jobs:\n" +
+        "- name: \"shared\"\n" +
+        "  connections:\n" +
+        "  - url: '" + url + "'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: runs\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select slow(next value for runs) as v\n";
+  }
+
+  private static double runsValue(List<Collector.MetricFamilySamples> mfsList) {
+    return mfsList.stream()
+        .filter(mfs -> mfs.name.equals("jdbc_runs"))
+        .flatMap(mfs -> mfs.samples.stream())
+        .mapToDouble(sample -> sample.value)
+        .findFirst()
+        .orElse(Double.NaN);
+  }
+
+  @Test
+  public void testConcurrentScrapesShouldShareOneCollection() throws Exception {
+    try (JdbcCollector collector = new JdbcCollector(sharedConfig("single_flight", ""))) {
+      final ExecutorService scrapers = Executors.newFixedThreadPool(4);
+      try {
+        final List<Future<List<Collector.MetricFamilySamples>>> scrapes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+          scrapes.add(scrapers.submit(() -> collector.collect()));
+        }
+        for (Future<List<Collector.MetricFamilySamples>> scrape : scrapes) {
+          assertEquals(1.0, runsValue(scrape.get()), 0.0);
+        }
+      } finally {
+        scrapers.shutdown();
+      }
+
+      // Without `min_interval`, a scrape that does not overlap another collects on its own.
+      assertEquals(2.0, runsValue(collector.collect()), 0.0);
+    }
+  }
+
+  @Test
+  public void testScrapesWithinMinIntervalShouldShareLastCollection() throws Exception {
+    try (JdbcCollector collector = new JdbcCollector(sharedConfig("min_interval", "min_interval: 1h\n"))) {
+      assertEquals(1.0, runsValue(collector.collect()), 0.0);
+      assertEquals(1.0, runsValue(collector.collect()), 0.0);
+    }
+  }
+}
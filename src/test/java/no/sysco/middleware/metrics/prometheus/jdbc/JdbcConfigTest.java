@@ -1,10 +1,31 @@
 package no.sysco.middleware.metrics.prometheus.jdbc;
 
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.h2.tools.Server;
+import org.h2.tools.SimpleResultSet;
 import org.junit.Test;
 import org.yaml.snakeyaml.Yaml;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+import static java.util.stream.Collectors.toList;
 import static org.junit.Assert.*;
 
 /**
@@ -204,4 +225,1335 @@ public class JdbcConfigTest {
     assertNotNull(config);
   }
 
-}
\ No newline at end of file
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigShouldFailIfPoolMinSizeAboveMaxSize() {
+    new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  connections:\n" +
+        "  - url: jdbc\n" +
+        "    username: sys\n" +
+        "    password: sys\n" +
+        "    pool:\n" +
+        "      min_size: 3\n" +
+        "      max_size: 2\n" +
+        "  queries:\n" +
+        "  - name: jdbc\n" +
+        "    values:\n" +
+        "    - v1\n" +
+        "    query: abc\n" +
+        ""));
+  }
+
+  @Test
+  public void testParseDuration() {
+    assertEquals(250L, JdbcConfig.parseDuration("250ms"));
+    assertEquals(30_000L, JdbcConfig.parseDuration("30s"));
+    assertEquals(300_000L, JdbcConfig.parseDuration("5m"));
+    assertEquals(3_600_000L, JdbcConfig.parseDuration("1h"));
+    assertEquals(15_000L, JdbcConfig.parseDuration(15));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseDurationShouldFailIfInvalid() {
+    JdbcConfig.parseDuration("five minutes");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigShouldFailIfJobIntervalInvalid() {
+    new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  interval: 'soon'\n" +
+        "  connections:\n" +
+        "  - url: jdbc\n" +
+        "    username: sys\n" +
+        "    password: sys\n" +
+        "  queries:\n" +
+        "  - name: jdbc\n" +
+        "    values:\n" +
+        "    - v1\n" +
+        "    query: abc\n" +
+        ""));
+  }
+
+  @Test
+  public void testParallelJobsShouldMatchSequentialOutput() {
+    final String jobs = "jobs:\n" +
+        "- name: \"first\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:parallel_a'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "    max_concurrency: 3\n" +
+        "  - url: 'jdbc:h2:mem:parallel_b'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: q1\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select x as v, 'a' || x as l from system_range(1, 5)\n" +
+        "  - name: q2\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 2 as v\n" +
+        "  - name: q3\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 3 as v\n" +
+        "- name: \"second\"\n" +
+        "  parallelism: 2\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:parallel_c'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: q4\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 4 as v\n";
+
+    try (JdbcConfig sequential = new JdbcConfig(yaml(jobs));
+         JdbcConfig parallel = new JdbcConfig(yaml(
+             "parallelism: 4\n" + "executor: virtual\n" + jobs))) {
+      final String expected = describe(sequential.runJobs());
+      assertTrue(expected.startsWith("jdbc_q1[a1, jdbc:h2:mem:parallel_a]1.0\n"));
+      assertTrue(expected.contains("jdbc_q2[jdbc:h2:mem:parallel_b]2.0\n"));
+      assertTrue(expected.contains("jdbc_q4[]4.0\n"));
+      assertEquals(expected, describe(parallel.runJobs()));
+    }
+  }
+
+  private static String describe(List<Collector.MetricFamilySamples> mfsList) {
+    StringBuilder builder = new StringBuilder();
+    for (Collector.MetricFamilySamples mfs : mfsList) {
+      for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+        if (!sample.name.equals("jdbc_scrape_duration_seconds")) {
+          builder.append(sample.name).append(sample.labelValues).append(sample.value).append('\n');
+        }
+      }
+    }
+    return builder.toString();
+  }
+
+  @Test
+  public void testJobsShouldBeInstrumentedByJobConnectionAndQuery() {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"first\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:instrumented'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: rows\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select x as v, 'a' || x as l from system_range(1, 3)\n" +
+        "  - name: broken\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select v from missing_table\n" +
+        "- name: \"second\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:instrumented'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: one\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n"))) {
+      final List<Collector.MetricFamilySamples> mfsList = config.runJobs();
+      assertEquals(1, mfsList.stream().filter(mfs -> mfs.name.equals("jdbc_scrape_error")).count());
+      final String result = describe(mfsList);
+      assertTrue(result.contains("jdbc_scrape_error[first]0.0\n"));
+      assertTrue(result.contains("jdbc_scrape_error[second]0.0\n"));
+
+      final String instrumentation = describe(config.querySamples());
+      assertTrue(instrumentation.contains("jdbc_query_rows[first, jdbc:h2:mem:instrumented, rows]3.0\n"));
+      assertTrue(instrumentation.contains("jdbc_query_samples[first, jdbc:h2:mem:instrumented, rows]3.0\n"));
+      assertTrue(instrumentation.contains("jdbc_query_duration_seconds_count[first, jdbc:h2:mem:instrumented, rows]1.0\n"));
+      assertTrue(instrumentation.contains("jdbc_query_duration_seconds_bucket[second, jdbc:h2:mem:instrumented, one, +Inf]1.0\n"));
+      assertTrue(instrumentation.contains("jdbc_query_errors_total[first, jdbc:h2:mem:instrumented, broken, 42S04]1.0\n"));
+      assertTrue(instrumentation.contains("jdbc_connection_acquire_seconds_count[first, jdbc:h2:mem:instrumented]1.0\n"));
+    }
+  }
+
+  @Test
+  public void testCachedQueryShouldServeStaleResultsWhileRefreshing() throws Exception {
+    try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:cache_test;DB_CLOSE_DELAY=-1", "sa", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute("create sequence runs");
+    }
+
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"cached\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:cache_test;DB_CLOSE_DELAY=-1'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: runs\n" +
+        "    cache_ttl: 200ms\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select next value for runs as v\n"))) {
+      assertTrue(describe(config.runJobs()).contains("jdbc_runs[]1.0\n"));
+      assertTrue(describe(config.runJobs()).contains("jdbc_runs[]1.0\n"));
+
+      Thread.sleep(300L);
+      assertTrue(describe(config.runJobs()).contains("jdbc_runs[]1.0\n"));  // Stale, refreshed in the background.
+
+      long deadline = System.currentTimeMillis() + 5_000L;
+      while (!describe(config.runJobs()).contains("jdbc_runs[]2.0\n")) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(10L);
+      }
+
+      final String instrumentation = describe(config.querySamples());
+      assertTrue(instrumentation.contains("jdbc_query_cache_misses_total[cached, jdbc:h2:mem:cache_test;DB_CLOSE_DELAY=-1, runs]1.0\n"));
+      assertTrue(instrumentation.contains("jdbc_query_cache_age_seconds[cached, jdbc:h2:mem:cache_test;DB_CLOSE_DELAY=-1, runs]"));
+    }
+  }
+
+  @Test
+  public void testProbeShouldRunOnlySelectedJobAndTarget() {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"first\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:probe_a'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  - url: 'jdbc:h2:mem:probe_b'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: db\n" +
+        "    labels:\n" +
+        "    - name\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v, database() as name\n" +
+        "- name: \"second\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:probe_a'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: other\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 2 as v\n"))) {
+      String result = describe(config.probe("first", "jdbc:h2:mem:probe_b"));
+      assertTrue(result.contains("jdbc_db[PROBE_B, jdbc:h2:mem:probe_b]1.0\n"));
+      assertFalse(result.contains("PROBE_A"));
+      assertFalse(result.contains("jdbc_other"));
+      assertTrue(result.contains("jdbc_query_error[first, jdbc:h2:mem:probe_b, db]0.0\n"));
+      assertFalse(result.contains("jdbc:h2:mem:probe_a"));
+
+      result = describe(config.probe(null, "jdbc:h2:mem:probe_a"));
+      assertTrue(result.contains("jdbc_db[PROBE_A, jdbc:h2:mem:probe_a]1.0\n"));
+      assertTrue(result.contains("jdbc_other[]2.0\n"));
+      assertFalse(result.contains("PROBE_B"));
+
+      try {
+        config.probe("missing", null);
+        fail("Unknown job should be rejected.");
+      } catch (IllegalArgumentException expected) {
+        // Reported as not found by the probe endpoint.
+      }
+    }
+  }
+
+  @Test
+  public void testStreamedQueriesShouldBeWrittenRowByRow() throws IOException {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"streaming\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:stream_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: streamed\n" +
+        "    help: Streamed rows\n" +
+        "    stream: true\n" +
+        "    fetch_size: 100\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select x as v, 'row' || x as l from system_range(1, 10000)\n" +
+        "  - name: collected\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n"))) {
+      final String collected = describe(config.runJobs());
+      assertTrue(collected.contains("jdbc_collected[]1.0\n"));
+      assertFalse(collected.contains("streamed"));
+
+      StringWriter writer = new StringWriter();
+      config.stream(new JdbcTextEncoder(writer, TextFormat.CONTENT_TYPE_004), null, null);
+      final String streamed = writer.toString();
+      assertTrue(streamed.startsWith("# HELP jdbc_streamed Streamed rows\n# TYPE jdbc_streamed gauge\n"));
+      assertTrue(streamed.contains("jdbc_streamed{l=\"row1\",} 1.0\n"));
+      assertTrue(streamed.contains("jdbc_streamed{l=\"row10000\",} 10000.0\n"));
+      assertFalse(streamed.contains("jdbc_collected"));
+      assertTrue(streamed.endsWith(
+          "jdbc_query_stream_error{job=\"streaming\",connection=\"jdbc:h2:mem:stream_test\",query=\"streamed\",} 0.0\n"));
+      assertTrue(describe(config.querySamples()).contains(
+          "jdbc_query_rows[streaming, jdbc:h2:mem:stream_test, streamed]10000.0\n"));
+    }
+  }
+
+  @Test
+  public void testStreamedQueriesShouldRunOutsideAutoCommitAndStopAtTheDeadline() throws IOException {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "scrape_timeout: 500ms\n" +
+        "jobs:\n" +
+        "- name: \"streaming\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:stream_deadline_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: streamed_auto_commit\n" +
+        "    stream: true\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select case when autocommit() then 1 else 0 end as v\n" +
+        "  - name: streamed_slow\n" +
+        "    stream: true\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select a.x as v from system_range(1, 100000) a, system_range(1, 100000) b where a.x * b.x < 0\n" +
+        "  - name: auto_commit\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select case when autocommit() then 1 else 0 end as v\n"))) {
+      final long start = System.currentTimeMillis();
+      StringWriter writer = new StringWriter();
+      config.stream(new JdbcTextEncoder(writer, TextFormat.CONTENT_TYPE_004), null, null);
+      assertTrue(System.currentTimeMillis() - start < 5_000L);
+
+      final String streamed = writer.toString();
+      assertTrue(streamed.contains("jdbc_streamed_auto_commit 0.0\n"));
+      assertTrue(streamed.contains("query=\"streamed_auto_commit\",} 0.0\n"));
+      assertTrue(streamed.contains("query=\"streamed_slow\",} 1.0\n"));
+
+      // Handed back to the pool in auto-commit mode.
+      assertTrue(describe(config.runJobs()).contains("jdbc_auto_commit[]1.0\n"));
+    }
+  }
+
+  @Test
+  public void testStreamedQueriesShouldBeSharedWithinMinInterval() throws IOException {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "min_interval: 1m\n" +
+        "jobs:\n" +
+        "- name: \"streaming\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:stream_shared_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: streamed_random\n" +
+        "    stream: true\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select rand() as v\n"))) {
+      StringWriter first = new StringWriter();
+      config.stream(new JdbcTextEncoder(first, TextFormat.CONTENT_TYPE_004), null, null);
+      StringWriter second = new StringWriter();
+      config.stream(new JdbcTextEncoder(second, TextFormat.CONTENT_TYPE_004), null, null);
+      assertTrue(first.toString().contains("jdbc_streamed_random "));
+      assertEquals(first.toString(), second.toString());
+
+      // Runs of another format are not shared.
+      StringWriter openMetrics = new StringWriter();
+      config.stream(new JdbcTextEncoder(openMetrics, TextFormat.CONTENT_TYPE_OPENMETRICS_100), null, null);
+      final String sample = Arrays.stream(first.toString().split("\n"))
+          .filter(line -> line.startsWith("jdbc_streamed_random "))
+          .findFirst()
+          .orElseThrow(AssertionError::new);
+      assertFalse(openMetrics.toString().contains(sample + "\n"));
+    }
+  }
+
+  @Test
+  public void testQueriesShouldStopAtTheirLimits() {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "max_rows: 100\n" +
+        "jobs:\n" +
+        "- name: \"limited\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:limits_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: rows\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select x as v, 'row' || x as l from system_range(1, 1000)\n" +
+        "  - name: series\n" +
+        "    max_series: 3\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select x as v, 'row' || mod(x, 5) as l from system_range(1, 20)\n" +
+        "  - name: samples\n" +
+        "    max_samples: 5\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select x as v, 'row' || x as l from system_range(1, 10)\n" +
+        "  - name: unlimited\n" +
+        "    max_rows: 10\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select x as v, 'row' || x as l from system_range(1, 10)\n"))) {
+      final List<Collector.MetricFamilySamples> mfsList = config.runJobs();
+      assertEquals(100, samples(mfsList, "jdbc_rows"));
+      assertEquals(3, samples(mfsList, "jdbc_series"));
+      assertEquals(5, samples(mfsList, "jdbc_samples"));
+      assertEquals(10, samples(mfsList, "jdbc_unlimited"));
+
+      final String instrumented = describe(config.querySamples());
+      assertTrue(instrumented.contains(
+          "jdbc_query_truncated_total[limited, jdbc:h2:mem:limits_test, rows, max_rows]1.0\n"));
+      assertTrue(instrumented.contains(
+          "jdbc_query_truncated_total[limited, jdbc:h2:mem:limits_test, series, max_series]1.0\n"));
+      assertTrue(instrumented.contains(
+          "jdbc_query_truncated_total[limited, jdbc:h2:mem:limits_test, samples, max_samples]1.0\n"));
+      assertFalse(instrumented.contains("unlimited, max_"));
+    }
+  }
+
+  @Test
+  public void testScrapesShouldStopAtTheTotalSampleBudget() {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "max_total_samples: 15\n" +
+        "jobs:\n" +
+        "- name: \"first\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:budget_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: budget_first\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select x as v, 'row' || x as l from system_range(1, 10)\n" +
+        "- name: \"second\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:budget_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: budget_second\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select x as v, 'row' || x as l from system_range(1, 10)\n"))) {
+      final List<Collector.MetricFamilySamples> mfsList = config.runJobs();
+      assertEquals(10, samples(mfsList, "jdbc_budget_first"));
+      assertEquals(5, samples(mfsList, "jdbc_budget_second"));
+      // The exporter's own families are kept.
+      assertEquals(2, samples(mfsList, "jdbc_scrape_error"));
+
+      final Collector.MetricFamilySamples overBudget = config.querySamples().stream()
+          .filter(mfs -> mfs.name.equals("jdbc_samples_over_budget"))
+          .findFirst()
+          .orElseThrow(AssertionError::new);
+      assertTrue(overBudget.samples.get(0).value >= 5.0);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> yaml(String config) {
+    return (Map<String, Object>) new Yaml().load(config);
+  }
+
+  private static int samples(List<Collector.MetricFamilySamples> mfsList, String name) {
+    return mfsList.stream()
+        .filter(mfs -> mfs.name.equals(name))
+        .mapToInt(mfs -> mfs.samples.size())
+        .sum();
+  }
+
+  @Test
+  public void testTruncatedStatementShouldNotBeReused() throws SQLException {
+    JdbcConfig.Query query = new JdbcConfig.Query();
+    query.name = "truncated";
+    query.metricName = "jdbc_truncated";
+    query.query = "select x as v from system_range(1, 1000)";
+    query.values = Arrays.asList(new JdbcConfig.Value("v"));
+    query.limits.maxRows = 10L;
+
+    try (JdbcConnectionPool pool = new JdbcConnectionPool(
+        "jdbc:h2:mem:truncate_test", "sa", "", new JdbcConnectionPool.Settings());
+         JdbcConnectionPool.PooledConnection pooled = pool.borrow();
+         ResultSet rs = pooled.prepare(query.query).executeQuery()) {
+      assertEquals(10, JdbcSamples.getSamples(query, rs, null, JdbcConfig.ConstantLabels.NONE, pooled)
+          .get(0).samples.size());
+      assertEquals(0, pooled.cachedStatements());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigShouldFailIfLimitIsNotPositive() {
+    new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  connections:\n" +
+        "  - url: jdbc\n" +
+        "    username: sys\n" +
+        "    password: sys\n" +
+        "  queries:\n" +
+        "  - name: jdbc\n" +
+        "    max_rows: 0\n" +
+        "    values:\n" +
+        "    - v1\n" +
+        "    query: abc\n" +
+        ""));
+  }
+
+  @Test
+  public void testUnreachableDatabaseShouldBeSkippedUntilItRecovers() throws Exception {
+    final int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    final String url = "jdbc:h2:tcp://localhost:" + port + "/mem:breaker_test";
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"breaker\"\n" +
+        "  connections:\n" +
+        "  - url: '" + url + "'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "    circuit_breaker:\n" +
+        "      backoff: 50ms\n" +
+        "  queries:\n" +
+        "  - name: breaker\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n"))) {
+      assertTrue(describe(config.runJobs()).contains("jdbc_query_error[breaker, " + url + ", breaker]1.0\n"));
+      assertTrue(describe(config.querySamples()).contains("jdbc_up[breaker, " + url + "]0.0\n"));
+
+      // Skipped without trying to connect again.
+      assertTrue(describe(config.runJobs()).contains("jdbc_query_error[breaker, " + url + ", breaker]1.0\n"));
+      final String skipped = describe(config.querySamples());
+      assertTrue(skipped.contains("jdbc_connection_skipped_total[breaker, " + url + "]1.0\n"));
+      assertEquals(1, skipped.split("jdbc_connection_errors_total").length - 1);
+
+      final Server server = Server.createTcpServer("-tcpPort", String.valueOf(port), "-ifNotExists").start();
+      try {
+        final long deadline = System.currentTimeMillis() + 30_000L;
+        while (!describe(config.querySamples()).contains("jdbc_up[breaker, " + url + "]1.0\n")
+            && System.currentTimeMillis() < deadline) {
+          Thread.sleep(50L);
+        }
+        assertTrue(describe(config.runJobs()).contains("jdbc_breaker[]1.0\n"));
+      } finally {
+        server.stop();
+      }
+    }
+  }
+
+  @Test
+  public void testExhaustedPoolShouldNotOpenTheBreaker() throws Exception {
+    final String url = "jdbc:h2:mem:exhausted_test;INIT=CREATE ALIAS IF NOT EXISTS SLEEP FOR 'java.lang.Thread.sleep'";
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"exhausted\"\n" +
+        "  connections:\n" +
+        "  - url: \"" + url + "\"\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "    pool:\n" +
+        "      max_size: 1\n" +
+        "      borrow_timeout: 50ms\n" +
+        "  queries:\n" +
+        "  - name: exhausted\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v, sleep(1000) as s\n"))) {
+      final CompletableFuture<List<Collector.MetricFamilySamples>> slow =
+          CompletableFuture.supplyAsync(config::runJobs);
+      Thread.sleep(300L);
+
+      // The only connection is held by the slow run.
+      assertTrue(describe(config.runJobs()).contains("jdbc_query_error[exhausted, " + url + ", exhausted]1.0\n"));
+      final String samples = describe(config.querySamples());
+      assertTrue(samples.contains("jdbc_up[exhausted, " + url + "]1.0\n"));
+      assertTrue(samples.contains("jdbc_connection_skipped_total[exhausted, " + url + "]0.0\n"));
+
+      assertTrue(describe(slow.get(10, TimeUnit.SECONDS)).contains("jdbc_query_error[exhausted, " + url + ", exhausted]0.0\n"));
+      assertTrue(describe(config.runJobs()).contains("jdbc_query_error[exhausted, " + url + ", exhausted]0.0\n"));
+    }
+  }
+
+  @Test
+  public void testWarmUpShouldOpenConnectionsAndCheckColumns() throws Exception {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"warm\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:warm_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "    max_concurrency: 2\n" +
+        "  queries:\n" +
+        "  - name: valid\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n" +
+        "  - name: invalid\n" +
+        "    labels:\n" +
+        "    - missing_label\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    - missing_value\n" +
+        "    query: select 1 as v\n"))) {
+      final List<String> problems = config.warmUp().get();
+      assertEquals(1, problems.size());
+      assertEquals("Query invalid of job warm on jdbc:h2:mem:warm_test has no column for missing_label, missing_value.",
+          problems.get(0));
+      assertTrue(describe(config.poolSamples()).contains(
+          "jdbc_pool_idle_connections[warm, jdbc:h2:mem:warm_test]2.0\n"));
+    }
+  }
+
+  private static String mergeConfig(String labelsA, String labelsB) {
+    return "---\n" +
+        "jobs:\n" +
+        "- name: \"merged\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:merge_a'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        labelsA +
+        "  - url: 'jdbc:h2:mem:merge_b'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        labelsB +
+        "  queries:\n" +
+        "  - name: merged\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v, 'x' as l\n";
+  }
+
+  @Test
+  public void testFamiliesShouldBeMergedAcrossConnectionsWithTheirLabels() {
+    try (JdbcConfig config = new JdbcConfig(yaml(mergeConfig(
+        "    labels:\n      instance: a\n",
+        "    labels:\n      instance: b\n")))) {
+      final List<Collector.MetricFamilySamples> merged = config.runJobs();
+      assertEquals(1, merged.stream().filter(mfs -> mfs.name.equals("jdbc_merged")).count());
+      assertEquals(1, merged.stream().filter(mfs -> mfs.name.equals("jdbc_query_error")).count());
+      final String result = describe(merged);
+      assertTrue(result.contains("jdbc_merged[x, a]1.0\njdbc_merged[x, b]1.0\n"));
+      assertEquals(Arrays.asList("l", "instance"),
+          merged.stream().filter(mfs -> mfs.name.equals("jdbc_merged")).findFirst().get().samples.get(0).labelNames);
+    }
+  }
+
+  @Test
+  public void testHistoryShouldKeepMergedFamilies() throws IOException {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "history:\n" +
+        "  size: 2\n" +
+        "jobs:\n" +
+        "- name: \"recorded\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:history_merge_a'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  - url: 'jdbc:h2:mem:history_merge_b'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: recorded\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n"))) {
+      config.runJobs();
+      StringWriter writer = new StringWriter();
+      config.writeHistory(writer, "recorded", Long.MIN_VALUE);
+      final String history = writer.toString();
+      // One family, with a series for each connection.
+      assertEquals(1, history.split("# TYPE jdbc_recorded ").length - 1);
+      assertTrue(history.contains("\njdbc_recorded{connection=\"jdbc:h2:mem:history_merge_a\"} 1.0 "));
+      assertTrue(history.contains("\njdbc_recorded{connection=\"jdbc:h2:mem:history_merge_b\"} 1.0 "));
+    }
+  }
+
+  @Test
+  public void testConnectionsWithoutLabelsShouldBeLabeledByUrl() {
+    try (JdbcConfig config = new JdbcConfig(yaml(mergeConfig("", "")))) {
+      assertEquals("jdbc_merged[x, jdbc:h2:mem:merge_a]1.0\njdbc_merged[x, jdbc:h2:mem:merge_b]1.0\n", describe(
+          config.runJobs().stream().filter(mfs -> mfs.name.equals("jdbc_merged")).collect(toList())));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigShouldFailIfConnectionsCannotBeToldApart() {
+    new JdbcConfig(yaml(mergeConfig("", "").replace("merge_b", "merge_a")));
+  }
+
+  @Test
+  public void testSamplesWithTheSameLabelsShouldBeDropped() {
+    final String job = "- name: \"%s\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:duplicates_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: duplicated\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n";
+    try (JdbcConfig config = new JdbcConfig(yaml(
+        "jobs:\n" + String.format(job, "first") + String.format(job, "second")))) {
+      final double before = duplicates(config);
+      assertEquals("jdbc_duplicated[]1.0\n", describe(
+          config.runJobs().stream().filter(mfs -> mfs.name.equals("jdbc_duplicated")).collect(toList())));
+      assertEquals(before + 1.0, duplicates(config), 0.0);
+    }
+  }
+
+  private static double duplicates(JdbcConfig config) {
+    return config.querySamples().stream()
+        .flatMap(mfs -> mfs.samples.stream())
+        .filter(sample -> sample.name.equals("jdbc_duplicate_samples_total"))
+        .mapToDouble(sample -> sample.value)
+        .sum();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigShouldFailIfConnectionLabelIsAQueryLabel() {
+    new JdbcConfig(yaml(mergeConfig("    labels:\n      l: a\n", "")));
+  }
+
+  private static String valuesConfig(String options) {
+    return "---\n" +
+        "jobs:\n" +
+        "- name: \"io\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:values_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "    labels:\n" +
+        "      instance: a\n" +
+        "  queries:\n" +
+        "  - name: io\n" +
+        options +
+        "    values:\n" +
+        "    - reads\n" +
+        "    - writes\n" +
+        "    query: select 1 as reads, 2 as writes, 'x' as l, 'b' as instance\n";
+  }
+
+  @Test
+  public void testValuesOfAQueryShouldBeLabeledByColumn() throws SQLException {
+    try (JdbcConfig config = new JdbcConfig(yaml(valuesConfig(
+        "    labels:\n    - l\n" +
+        "    value_label: operation\n")))) {
+      for (int run = 0; run < 2; run++) {  // The second reuses the series of the first.
+        final List<Collector.MetricFamilySamples> mfsList =
+            config.runJobs().stream().filter(mfs -> mfs.name.equals("jdbc_io")).collect(toList());
+        assertEquals("jdbc_io[x, reads, a]1.0\njdbc_io[x, writes, a]2.0\n", describe(mfsList));
+        assertEquals(Arrays.asList("l", "operation", "instance"), mfsList.get(0).samples.get(0).labelNames);
+      }
+    }
+
+    JdbcConfig.Query query = new JdbcConfig.Query();
+    query.name = "io";
+    query.metricName = "jdbc_io";
+    query.values = Arrays.asList(new JdbcConfig.Value("reads"), new JdbcConfig.Value("writes"));
+    SimpleResultSet rs = new SimpleResultSet();
+    rs.addColumn("reads", Types.DOUBLE, 16, 0);
+    rs.addColumn("writes", Types.DOUBLE, 16, 0);
+    rs.addRow(1.0, 2.0);
+    assertEquals("jdbc_io[reads]1.0\njdbc_io[writes]2.0\n", describe(JdbcSamples.getSamples(query, rs)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigShouldFailIfValueLabelIsAQueryLabel() {
+    new JdbcConfig(yaml(valuesConfig(
+        "    labels:\n    - l\n" +
+        "    value_label: l\n")));
+  }
+
+  @Test
+  public void testAllLabelsShouldFailIfAColumnIsAConnectionLabel() {
+    try (JdbcConfig config = new JdbcConfig(yaml(valuesConfig(
+        "    labels: '*'\n")))) {
+      final String result = describe(config.runJobs());
+      assertFalse(result.contains("jdbc_io["));
+      assertTrue(result.contains("jdbc_query_error[io, jdbc:h2:mem:values_test, io]1.0\n"));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigShouldFailIfStreamedQueryIsScheduled() {
+    new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  interval: 1m\n" +
+        "  connections:\n" +
+        "  - url: jdbc\n" +
+        "    username: sys\n" +
+        "    password: sys\n" +
+        "  queries:\n" +
+        "  - name: jdbc\n" +
+        "    stream: true\n" +
+        "    values:\n" +
+        "    - v1\n" +
+        "    query: abc\n" +
+        ""));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigShouldFailIfExecutorUnknown() {
+    new JdbcConfig(yaml("---\n" +
+        "executor: green\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  connections:\n" +
+        "  - url: jdbc\n" +
+        "    username: sys\n" +
+        "    password: sys\n" +
+        "  queries:\n" +
+        "  - name: jdbc\n" +
+        "    values:\n" +
+        "    - v1\n" +
+        "    query: abc\n" +
+        ""));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigShouldFailIfPoolSmallerThanMaxConcurrency() {
+    new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  connections:\n" +
+        "  - url: jdbc\n" +
+        "    username: sys\n" +
+        "    password: sys\n" +
+        "    max_concurrency: 4\n" +
+        "    pool:\n" +
+        "      max_size: 2\n" +
+        "  queries:\n" +
+        "  - name: jdbc\n" +
+        "    values:\n" +
+        "    - v1\n" +
+        "    query: abc\n" +
+        ""));
+  }
+
+  @Test
+  public void testJobTimeoutShouldReturnPartialResults() {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"slow\"\n" +
+        "  timeout: 500ms\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:timeout_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: fast\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n" +
+        "  - name: slow\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select sum(a.x * b.x) as v from system_range(1, 100000) a, system_range(1, 100000) b\n" +
+        "  - name: skipped\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 3 as v\n"))) {
+      long start = System.currentTimeMillis();
+      List<Collector.MetricFamilySamples> mfsList = config.runJobs();
+      assertTrue(System.currentTimeMillis() - start < 5_000L);
+
+      final String result = describe(mfsList);
+      assertTrue(result.contains("jdbc_fast[]1.0\n"));
+      assertFalse(result.contains("jdbc_slow[]"));
+      assertTrue(result.contains("jdbc_query_timeout[slow, jdbc:h2:mem:timeout_test, fast]0.0\n"));
+      assertTrue(result.contains("jdbc_query_timeout[slow, jdbc:h2:mem:timeout_test, slow]1.0\n"));
+      assertTrue(result.contains("jdbc_query_timeout[slow, jdbc:h2:mem:timeout_test, skipped]1.0\n"));
+      assertTrue(result.contains("jdbc_query_error[slow, jdbc:h2:mem:timeout_test, slow]0.0\n"));
+    }
+  }
+
+  @Test
+  public void testGetSamplesShouldResolveColumnsByLabel() throws SQLException {
+    JdbcConfig.Query query = new JdbcConfig.Query();
+    query.name = "sizes";
+    query.metricName = "jdbc_sizes";
+    query.labels = Arrays.asList("dbname", "missing");
+    query.values = Arrays.asList(new JdbcConfig.Value("DBSIZE"));
+
+    SimpleResultSet rs = new SimpleResultSet();
+    rs.addColumn("DBNAME", Types.VARCHAR, 64, 0);
+    rs.addColumn("dbsize", Types.DOUBLE, 16, 0);
+    rs.addRow("postgres", 42.0);
+    rs.addRow("template1", 7.0);
+
+    List<Collector.MetricFamilySamples> mfsList = JdbcSamples.getSamples(query, rs);
+    assertEquals(1, mfsList.size());
+    assertEquals("jdbc_sizes[postgres, ]42.0\njdbc_sizes[template1, ]7.0\n", describe(mfsList));
+    assertEquals(Arrays.asList("dbname", "missing"), mfsList.get(0).samples.get(0).labelNames);
+  }
+
+  @Test
+  public void testColumnsShouldBeResolvedAgainWhenResultSetChanges() throws SQLException {
+    JdbcConfig.Query query = new JdbcConfig.Query();
+    query.name = "sizes";
+    query.metricName = "jdbc_sizes";
+    query.labels = Arrays.asList("dbname");
+    query.values = Arrays.asList(new JdbcConfig.Value("dbsize"));
+
+    SimpleResultSet rs = new SimpleResultSet();
+    rs.addColumn("DBNAME", Types.VARCHAR, 64, 0);
+    rs.addColumn("DBSIZE", Types.DOUBLE, 16, 0);
+    rs.addRow("postgres", 42.0);
+    assertEquals("jdbc_sizes[postgres]42.0\n", describe(JdbcSamples.getSamples(query, rs)));
+
+    SimpleResultSet reordered = new SimpleResultSet();
+    reordered.addColumn("DBSIZE", Types.BIGINT, 19, 0);
+    reordered.addColumn("DBNAME", Types.VARCHAR, 64, 0);
+    reordered.addRow(7L, "template1");
+    assertEquals("jdbc_sizes[template1]7.0\n", describe(JdbcSamples.getSamples(query, reordered)));
+  }
+
+  @Test
+  public void testSeriesShouldBeReusedAcrossRuns() throws SQLException {
+    JdbcConfig.Query query = new JdbcConfig.Query();
+    query.name = "sizes";
+    query.metricName = "jdbc_sizes";
+    query.labels = Arrays.asList("dbname");
+    query.values = Arrays.asList(new JdbcConfig.Value("dbsize"));
+    final JdbcQueryStats stats = new JdbcQueryStats();
+
+    SimpleResultSet rs = new SimpleResultSet();
+    rs.setAutoClose(false);
+    rs.addColumn("DBNAME", Types.VARCHAR, 64, 0);
+    rs.addColumn("DBSIZE", Types.DOUBLE, 16, 0);
+    rs.addRow("postgres", 42.0);
+    rs.addRow("template1", 7.0);
+    final List<Collector.MetricFamilySamples.Sample> first =
+        JdbcSamples.getSamples(query, rs, stats, JdbcConfig.ConstantLabels.NONE).get(0).samples;
+
+    SimpleResultSet changed = new SimpleResultSet();
+    changed.addColumn("DBNAME", Types.VARCHAR, 64, 0);
+    changed.addColumn("DBSIZE", Types.DOUBLE, 16, 0);
+    changed.addRow("postgres", 42.0);
+    changed.addRow("template1", 8.0);
+    final List<Collector.MetricFamilySamples.Sample> second =
+        JdbcSamples.getSamples(query, changed, stats, JdbcConfig.ConstantLabels.NONE).get(0).samples;
+    assertSame(first.get(0), second.get(0));
+    assertNotSame(first.get(1), second.get(1));
+    assertSame(first.get(1).labelValues, second.get(1).labelValues);
+    assertEquals(8.0, second.get(1).value, 0.0);
+    assertEquals(2, stats.series.size());
+
+    // Series no longer returned are dropped.
+    SimpleResultSet fewer = new SimpleResultSet();
+    fewer.addColumn("DBNAME", Types.VARCHAR, 64, 0);
+    fewer.addColumn("DBSIZE", Types.DOUBLE, 16, 0);
+    fewer.addRow("postgres", 42.0);
+    assertEquals("jdbc_sizes[postgres]42.0\n",
+        describe(JdbcSamples.getSamples(query, fewer, stats, JdbcConfig.ConstantLabels.NONE)));
+    assertEquals(1, stats.series.size());
+  }
+
+  @Test
+  public void testCounterSamplesShouldBeReusedAcrossCollections() {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"counted\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:counter_reuse_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: transactions\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - name: v\n" +
+        "      type: counter\n" +
+        "    query: select x as v, 'row' || x as l from system_range(1, 3)\n"))) {
+      final List<Collector.MetricFamilySamples.Sample> first = counterSamples(config.runJobs());
+      final List<Collector.MetricFamilySamples.Sample> second = counterSamples(config.runJobs());
+      assertEquals(3, first.size());
+      assertEquals("jdbc_transactions_total", first.get(0).name);
+      for (int i = 0; i < first.size(); i++) {
+        assertSame(first.get(i), second.get(i));
+      }
+    }
+  }
+
+  private static List<Collector.MetricFamilySamples.Sample> counterSamples(List<Collector.MetricFamilySamples> mfsList) {
+    return mfsList.stream()
+        .filter(mfs -> mfs.name.equals("jdbc_transactions"))
+        .findFirst()
+        .orElseThrow(AssertionError::new)
+        .samples;
+  }
+
+  @Test
+  public void testCounterQueriesShouldNotRepeatTheTotalSuffix() throws IOException {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "max_total_samples: 10\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:counter_suffix_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: bytes_written_total\n" +
+        "    values:\n" +
+        "    - name: v\n" +
+        "      type: counter\n" +
+        "    query: select 42 as v\n" +
+        "  - name: bytes_read_total\n" +
+        "    stream: true\n" +
+        "    values:\n" +
+        "    - name: v\n" +
+        "      type: counter\n" +
+        "    query: select 7 as v\n"))) {
+      final Collector.MetricFamilySamples mfs = config.runJobs().stream()
+          .filter(family -> family.name.equals("jdbc_bytes_written"))
+          .findFirst()
+          .orElseThrow(AssertionError::new);
+      assertEquals(1, mfs.samples.size());
+      assertEquals("jdbc_bytes_written_total", mfs.samples.get(0).name);
+
+      StringWriter streamed = new StringWriter();
+      config.stream(new JdbcTextEncoder(streamed, TextFormat.CONTENT_TYPE_004), null, null);
+      assertTrue(streamed.toString().contains("# TYPE jdbc_bytes_read_total counter\n"));
+      assertTrue(streamed.toString().contains("\njdbc_bytes_read_total 7.0\n"));
+    }
+  }
+
+  @Test
+  public void testEveryColumnButValuesShouldBeALabel() {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:all_labels_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: table_stats\n" +
+        "    labels: '*'\n" +
+        "    values:\n" +
+        "    - n_live_tup\n" +
+        "    query: select 'public' as schemaname, 12 as n_live_tup, 'users' as \"Table-Name\"\n"))) {
+      final Collector.MetricFamilySamples mfs = config.runJobs().stream()
+          .filter(family -> family.name.equals("jdbc_table_stats"))
+          .findFirst()
+          .orElseThrow(AssertionError::new);
+      assertEquals(Arrays.asList("schemaname", "table_name"), mfs.samples.get(0).labelNames);
+      assertEquals(Arrays.asList("public", "users"), mfs.samples.get(0).labelValues);
+      assertEquals(12.0, mfs.samples.get(0).value, 0.0);
+    }
+  }
+
+  private static JdbcConfig.Query batchedQuery(String name, String sql) {
+    JdbcConfig.Query query = new JdbcConfig.Query();
+    query.name = name;
+    query.metricName = "jdbc_" + name;
+    query.values = Arrays.asList(new JdbcConfig.Value("v"));
+    query.query = sql;
+    return query;
+  }
+
+  /**
+   * A statement returning `results` in turn, result sets or update counts,
+   * as a driver supporting multi-statement execution would.
+   */
+  private static Statement multiResultStatement(List<String> executed, Object... results) {
+    final int[] current = {0};
+    return (Statement) Proxy.newProxyInstance(
+        Statement.class.getClassLoader(),
+        new Class<?>[]{Statement.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "execute":
+              executed.add((String) args[0]);
+              return current[0] < results.length && results[current[0]] instanceof ResultSet;
+            case "getMoreResults":
+              current[0]++;
+              return current[0] < results.length && results[current[0]] instanceof ResultSet;
+            case "getResultSet":
+              return results[current[0]];
+            case "getUpdateCount":
+              return current[0] < results.length && results[current[0]] instanceof Integer ? results[current[0]] : -1;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private static SimpleResultSet values(double value) {
+    SimpleResultSet rs = new SimpleResultSet();
+    rs.addColumn("V", Types.DOUBLE, 16, 0);
+    rs.addRow(value);
+    return rs;
+  }
+
+  @Test
+  public void testBatchShouldRouteEachResultSetToItsQuery() throws SQLException {
+    final List<JdbcConfig.Query> queries = Arrays.asList(
+        batchedQuery("first", "select 1 as v;"),
+        batchedQuery("second", " select 2 as v "));
+    final List<JdbcQueryStats> stats = Arrays.asList(new JdbcQueryStats(), new JdbcQueryStats());
+    final List<String> executed = new ArrayList<>();
+
+    final Collector.MetricFamilySamples[][] results = JdbcBatch.executeBatch(
+        multiResultStatement(executed, values(1.0), 0, values(2.0)),
+        queries, stats, JdbcConfig.ConstantLabels.NONE);
+    assertEquals(Collections.singletonList("select 1 as v;\nselect 2 as v"), executed);
+    assertEquals("jdbc_first[]1.0\n", describe(Arrays.asList(results[0])));
+    assertEquals("jdbc_second[]2.0\n", describe(Arrays.asList(results[1])));
+
+    // A driver returning only the first result set cannot batch.
+    assertNull(JdbcBatch.executeBatch(
+        multiResultStatement(executed, values(1.0)), queries, stats, JdbcConfig.ConstantLabels.NONE));
+  }
+
+  @Test
+  public void testBatchedJobShouldFallBackToOneQueryAtATime() {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  batch: true\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:batch_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: first\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n" +
+        "  - name: second\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - w\n" +
+        "    query: select 2 as w, 'x' as l\n"))) {
+      // H2 returns the first result set of a batch only, so every run executes the queries one by one.
+      for (int run = 0; run < 2; run++) {
+        final String result = describe(config.runJobs());
+        assertTrue(result.contains("jdbc_first[]1.0\n"));
+        assertTrue(result.contains("jdbc_second[x]2.0\n"));
+        assertTrue(result.contains("jdbc_query_error[global, jdbc:h2:mem:batch_test, second]0.0\n"));
+      }
+    }
+  }
+
+  @Test
+  public void testFailingQueryShouldBeLeftOutOfTheBatch() throws SQLException {
+    final String url = "jdbc:h2:mem:batch_backoff_test;DB_CLOSE_DELAY=-1";
+    try (Connection connection = DriverManager.getConnection(url, "sa", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute("create sequence runs");
+    }
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  batch: true\n" +
+        "  connections:\n" +
+        "  - url: '" + url + "'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: runs\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select next value for runs as v\n" +
+        "  - name: missing\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select v from missing\n"))) {
+      // The failed batch runs the sequence once, and again when its queries run one by one.
+      assertTrue(describe(config.runJobs()).contains("jdbc_runs[]2.0\n"));
+      // Without the failing query, it is not batched again, and runs once.
+      assertTrue(describe(config.runJobs()).contains("jdbc_runs[]3.0\n"));
+      final String result = describe(config.runJobs());
+      assertTrue(result.contains("jdbc_runs[]4.0\n"));
+      assertTrue(result.contains("jdbc_query_error[global, " + url + ", missing]1.0\n"));
+    }
+  }
+
+  @Test
+  public void testGetSamplesShouldKeepPrecisionAndHandleNulls() throws SQLException {
+    JdbcConfig.Query query = new JdbcConfig.Query();
+    query.name = "bytes";
+    query.metricName = "jdbc_bytes";
+    query.labels = Arrays.asList("db");
+    query.type = Collector.Type.COUNTER;
+    JdbcConfig.Value value = new JdbcConfig.Value("bytes");
+    value.type = Collector.Type.COUNTER;
+    query.values = Arrays.asList(value);
+
+    SimpleResultSet rs = new SimpleResultSet();
+    rs.setAutoClose(false);
+    rs.addColumn("DB", Types.VARCHAR, 64, 0);
+    rs.addColumn("BYTES", Types.BIGINT, 19, 0);
+    rs.addRow("a", 1099511627777L);
+    rs.addRow("b", null);
+
+    List<Collector.MetricFamilySamples> mfsList = JdbcSamples.getSamples(query, rs);
+    assertEquals(Collector.Type.COUNTER, mfsList.get(0).type);
+    assertEquals(1, mfsList.get(0).samples.size());
+    assertEquals(1099511627777.0, mfsList.get(0).samples.get(0).value, 0.0);
+
+    value.defaultValue = -1.0;
+    rs.beforeFirst();
+    mfsList = JdbcSamples.getSamples(query, rs);
+    assertEquals("jdbc_bytes_total[a]1.099511627777E12\njdbc_bytes_total[b]-1.0\n", describe(mfsList));
+  }
+
+  @Test
+  public void testConfigShouldParseTypedValues() {
+    try (JdbcConfig config = new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:typed_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: rows\n" +
+        "    values:\n" +
+        "    - name: v\n" +
+        "      type: counter\n" +
+        "      default: 0\n" +
+        "    query: select cast(null as bigint) as v\n"))) {
+      Collector.MetricFamilySamples mfs = config.runJobs().get(0);
+      assertEquals(Collector.Type.COUNTER, mfs.type);
+      assertEquals(0.0, mfs.samples.get(0).value, 0.0);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigShouldFailIfValueTypesDiffer() {
+    new JdbcConfig(yaml("---\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  connections:\n" +
+        "  - url: jdbc\n" +
+        "    username: sys\n" +
+        "    password: sys\n" +
+        "  queries:\n" +
+        "  - name: jdbc\n" +
+        "    values:\n" +
+        "    - name: v1\n" +
+        "      type: counter\n" +
+        "    - v2\n" +
+        "    query: abc\n" +
+        ""));
+  }
+
+  @Test
+  public void testReloadShouldKeepUnchangedJobs() {
+    final String kept = "- name: \"kept\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:reload_kept'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: kept\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n";
+    final String changed = "- name: \"changed\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:reload_changed'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: changed\n" +
+        "    values:\n" +
+        "    - v\n";
+
+    JdbcConfig previous = new JdbcConfig(yaml(
+        "jobs:\n" + kept + changed + "    query: select 2 as v\n"));
+    previous.runJobs();
+
+    try (JdbcConfig next = new JdbcConfig(yaml(
+        "jobs:\n" + kept + changed + "    query: select 3 as v\n"), 0L, previous)) {
+      previous.close();
+      assertEquals(1, next.changedJobs());
+
+      final String result = describe(next.runJobs());
+      assertTrue(result.contains("jdbc_kept[]1.0\n"));
+      assertTrue(result.contains("jdbc_changed[]3.0\n"));
+
+      // Same connection definition, so the pooled connection and its statements survive the reload.
+      final String pools = describe(next.poolSamples());
+      assertTrue(pools.contains("jdbc_pool_connection_create_seconds_count[kept, jdbc:h2:mem:reload_kept]1.0\n"));
+      assertTrue(pools.contains("jdbc_pool_connection_create_seconds_count[changed, jdbc:h2:mem:reload_changed]1.0\n"));
+    }
+  }
+
+  @Test
+  public void testReloadShouldDropStatisticsOfRemovedQueries() {
+    final String job = "jobs:\n" +
+        "- name: \"renamed\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:reload_renamed'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: %s\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n";
+
+    try (JdbcConfig previous = new JdbcConfig(yaml(String.format(job, "before")))) {
+      previous.runJobs();
+      try (JdbcConfig next =
+               new JdbcConfig(yaml(String.format(job, "after")), 0L, previous)) {
+        next.runJobs();
+
+        final String instrumentation = describe(next.querySamples());
+        assertTrue(instrumentation.contains(
+            "jdbc_query_duration_seconds_count[renamed, jdbc:h2:mem:reload_renamed, after]1.0\n"));
+        assertFalse(instrumentation.contains("before"));
+      }
+    }
+  }
+}
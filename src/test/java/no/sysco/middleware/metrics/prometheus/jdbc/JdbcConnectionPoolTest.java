@@ -0,0 +1,128 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class JdbcConnectionPoolTest {
+
+  private JdbcConnectionPool pool;
+
+  @Before
+  public void setUp() {
+    JdbcConnectionPool.Settings settings = new JdbcConnectionPool.Settings();
+    settings.maxSize = 2;
+    settings.borrowTimeout = 100L;
+    settings.validationQuery = "select 1";
+    pool = new JdbcConnectionPool("jdbc:h2:mem:pool_test", "sa", "", settings);
+  }
+
+  @After
+  public void tearDown() {
+    pool.close();
+  }
+
+  @Test
+  public void testPoolShouldReuseReleasedConnection() throws SQLException {
+    Connection first;
+    try (JdbcConnectionPool.PooledConnection pooled = pool.borrow()) {
+      first = pooled.connection();
+      assertEquals(1, pool.activeCount());
+    }
+    assertEquals(0, pool.activeCount());
+    assertEquals(1, pool.idleCount());
+
+    try (JdbcConnectionPool.PooledConnection pooled = pool.borrow()) {
+      assertSame(first, pooled.connection());
+    }
+    assertEquals(1, pool.createCount());
+  }
+
+  @Test
+  public void testPoolShouldDiscardInvalidatedConnection() throws SQLException {
+    try (JdbcConnectionPool.PooledConnection pooled = pool.borrow()) {
+      pooled.invalidate();
+    }
+    assertEquals(0, pool.idleCount());
+  }
+
+  @Test
+  public void testPoolShouldWaitWhenExhausted() throws SQLException {
+    try (JdbcConnectionPool.PooledConnection first = pool.borrow();
+         JdbcConnectionPool.PooledConnection second = pool.borrow()) {
+      assertNotSame(first.connection(), second.connection());
+      try {
+        pool.borrow();
+        fail("Pool should time out when exhausted.");
+      } catch (SQLException e) {
+        assertTrue(e instanceof JdbcConnectionPool.UnavailableException);
+        assertEquals("HYT00", e.getSQLState());
+      }
+    }
+    assertEquals(1, pool.waitCount());
+    assertEquals(2, pool.idleCount());
+  }
+
+  @Test
+  public void testPoolShouldCloseConnectionsWhenDrained() throws SQLException {
+    Connection connection;
+    try (JdbcConnectionPool.PooledConnection pooled = pool.borrow()) {
+      connection = pooled.connection();
+    }
+    pool.close();
+    assertTrue(connection.isClosed());
+    assertEquals(0, pool.idleCount());
+  }
+
+  @Test
+  public void testPoolShouldRetireIdleConnectionsDownToMinSize() throws Exception {
+    JdbcConnectionPool.Settings settings = new JdbcConnectionPool.Settings();
+    settings.minSize = 1;
+    settings.maxSize = 3;
+    settings.idleTimeout = 1L;
+    try (JdbcConnectionPool idlePool = new JdbcConnectionPool("jdbc:h2:mem:pool_idle_test", "sa", "", settings)) {
+      try (JdbcConnectionPool.PooledConnection first = idlePool.borrow();
+           JdbcConnectionPool.PooledConnection second = idlePool.borrow();
+           JdbcConnectionPool.PooledConnection third = idlePool.borrow()) {
+        assertEquals(3, idlePool.activeCount());
+      }
+      Thread.sleep(10L);
+      idlePool.maintain();
+      assertEquals(1, idlePool.idleCount());
+      assertEquals(3, idlePool.createCount());
+    }
+  }
+
+  @Test(expected = SQLException.class)
+  public void testPoolShouldFailWhenClosed() throws SQLException {
+    pool.close();
+    pool.borrow();
+  }
+
+  @Test
+  public void testPoolShouldReusePreparedStatementsUntilClosed() throws SQLException {
+    PreparedStatement statement;
+    try (JdbcConnectionPool.PooledConnection pooled = pool.borrow()) {
+      statement = pooled.prepare("select 1");
+    }
+    try (JdbcConnectionPool.PooledConnection pooled = pool.borrow()) {
+      assertSame(statement, pooled.prepare("select 1"));
+      assertEquals(1, pooled.cachedStatements());
+
+      pooled.discard("select 1");
+      assertTrue(statement.isClosed());
+      statement = pooled.prepare("select 1");
+    }
+    pool.close();
+    assertTrue(statement.isClosed());
+  }
+}
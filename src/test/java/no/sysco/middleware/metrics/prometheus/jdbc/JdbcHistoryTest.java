@@ -0,0 +1,116 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class JdbcHistoryTest {
+
+  private static List<Collector.MetricFamilySamples> run(double... values) {
+    Collector.MetricFamilySamples.Sample[] samples = new Collector.MetricFamilySamples.Sample[values.length];
+    for (int i = 0; i < values.length; i++) {
+      samples[i] = new Collector.MetricFamilySamples.Sample(
+          "jdbc_bytes_total", Arrays.asList("db"), Arrays.asList("db" + i), values[i]);
+    }
+    return Collections.singletonList(
+        new Collector.MetricFamilySamples("jdbc_bytes", Collector.Type.COUNTER, "", Arrays.asList(samples)));
+  }
+
+  private static String write(JdbcHistory history, String job, long since) throws IOException {
+    StringWriter writer = new StringWriter();
+    history.write(writer, job, since);
+    return writer.toString();
+  }
+
+  @Test
+  public void testHistoryShouldKeepSeriesTogetherInTimeOrder() throws IOException {
+    JdbcHistory history = new JdbcHistory(3, 100L);
+    history.record("job", 1_000L, run(1.0, 2.0));
+    history.record("job", 2_500L, run(3.0, 4.0));
+    history.record("other", 2_000L, run(9.0));
+
+    assertEquals("# TYPE jdbc_bytes counter\n" +
+            "jdbc_bytes_total{db=\"db0\"} 1.0 1.000\n" +
+            "jdbc_bytes_total{db=\"db0\"} 3.0 2.500\n" +
+            "jdbc_bytes_total{db=\"db1\"} 2.0 1.000\n" +
+            "jdbc_bytes_total{db=\"db1\"} 4.0 2.500\n" +
+            "# EOF\n",
+        write(history, "job", Long.MIN_VALUE));
+    assertEquals("# TYPE jdbc_bytes counter\n" +
+            "jdbc_bytes_total{db=\"db0\"} 3.0 2.500\n" +
+            "jdbc_bytes_total{db=\"db1\"} 4.0 2.500\n" +
+            "# EOF\n",
+        write(history, "job", 1_000L));
+  }
+
+  @Test
+  public void testSeriesOfSeveralJobsShouldBeWrittenInTimeOrder() throws IOException {
+    JdbcHistory history = new JdbcHistory(3, 100L);
+    history.record("a", 1_000L, run(1.0));
+    history.record("a", 3_000L, run(3.0));
+    history.record("b", 2_000L, run(2.0));
+    history.record("b", 3_000L, run(9.0));
+    history.record("b", 4_000L, run(4.0));
+
+    // As on `/metrics`, the first job is kept when both have a sample at the same time.
+    assertEquals("# TYPE jdbc_bytes counter\n" +
+            "jdbc_bytes_total{db=\"db0\"} 1.0 1.000\n" +
+            "jdbc_bytes_total{db=\"db0\"} 2.0 2.000\n" +
+            "jdbc_bytes_total{db=\"db0\"} 3.0 3.000\n" +
+            "jdbc_bytes_total{db=\"db0\"} 4.0 4.000\n" +
+            "# EOF\n",
+        write(history, null, Long.MIN_VALUE));
+  }
+
+  @Test
+  public void testOldestRunsShouldBeDroppedWhenFull() throws IOException {
+    JdbcHistory history = new JdbcHistory(2, 5L);
+    history.record("job", 1_000L, run(1.0));
+    history.record("job", 2_000L, run(2.0, 2.0));
+    history.record("job", 3_000L, run(3.0));
+    // Two runs at most.
+    assertFalse(write(history, "job", Long.MIN_VALUE).contains(" 1.000\n"));
+
+    // Five samples at most, so a run of four samples leaves room for a run of one before it only.
+    history.record("job", 4_000L, run(4.0, 4.0, 4.0, 4.0));
+    assertEquals("# TYPE jdbc_bytes counter\n" +
+            "jdbc_bytes_total{db=\"db0\"} 3.0 3.000\n" +
+            "jdbc_bytes_total{db=\"db0\"} 4.0 4.000\n" +
+            "jdbc_bytes_total{db=\"db1\"} 4.0 4.000\n" +
+            "jdbc_bytes_total{db=\"db2\"} 4.0 4.000\n" +
+            "jdbc_bytes_total{db=\"db3\"} 4.0 4.000\n" +
+            "# EOF\n",
+        write(history, "job", Long.MIN_VALUE));
+
+    // Series no longer referenced are dropped.
+    history.record("job", 5_000L, run(5.0));
+    history.record("job", 6_000L, run(6.0));
+    assertEquals("# TYPE jdbc_bytes counter\n" +
+            "jdbc_bytes_total{db=\"db0\"} 5.0 5.000\n" +
+            "jdbc_bytes_total{db=\"db0\"} 6.0 6.000\n" +
+            "# EOF\n",
+        write(history, "job", Long.MIN_VALUE));
+  }
+
+  @Test
+  public void testRunLargerThanMaxSamplesShouldNotBeKept() throws IOException {
+    JdbcHistory history = new JdbcHistory(3, 2L);
+    history.record("job", 1_000L, run(1.0, 1.0));
+    history.record("job", 2_000L, run(2.0, 2.0, 2.0));
+    assertEquals("# TYPE jdbc_bytes counter\n" +
+            "jdbc_bytes_total{db=\"db0\"} 1.0 1.000\n" +
+            "jdbc_bytes_total{db=\"db1\"} 1.0 1.000\n" +
+            "# EOF\n",
+        write(history, "job", Long.MIN_VALUE));
+  }
+}
@@ -0,0 +1,206 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pushes to a local HTTP server standing in for a Pushgateway or a
+ * remote_write receiver.
+ */
+public class JdbcPusherTest {
+  private HttpServer receiver;
+  private final BlockingQueue<String[]> requests = new LinkedBlockingQueue<>();
+  private final AtomicInteger failuresLeft = new AtomicInteger();
+
+  @Before
+  public void startReceiver() throws IOException {
+    receiver = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    receiver.createContext("/", exchange -> {
+      final byte[] body = readAll(exchange.getRequestBody());
+      final int status = failuresLeft.getAndDecrement() > 0 ? 503 : 200;
+      if (status == 200) {
+        final boolean snappy = "snappy".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        requests.add(new String[]{
+            exchange.getRequestMethod(),
+            exchange.getRequestURI().getPath(),
+            new String(snappy ? Snappy.uncompress(body) : body, StandardCharsets.UTF_8)});
+      }
+      exchange.sendResponseHeaders(status, -1);
+      exchange.close();
+    });
+    receiver.start();
+  }
+
+  @After
+  public void stopReceiver() {
+    receiver.stop(0);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private JdbcConfig config(String push) {
+    return new JdbcConfig((Map<String, Object>) new Yaml().load("---\n" +
+        "push:\n" +
+        "  url: 'http://localhost:" + receiver.getAddress().getPort() + push + "\n" +
+        "  retry_backoff: 10ms\n" +
+        "  max_retries: 5\n" +
+        "jobs:\n" +
+        "- name: \"pushed\"\n" +
+        "  interval: 1h\n" +
+        "  push: true\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:push_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: pushed\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n" +
+        "- name: \"scraped\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:push_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: scraped\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 2 as v\n"));
+  }
+
+  @Test
+  public void testPushedJobShouldBeSentToPushgateway() throws InterruptedException {
+    try (JdbcConfig config = config("'")) {
+      config.start();
+      final String[] request = requests.poll(30, TimeUnit.SECONDS);
+      assertNotNull(request);
+      assertEquals("PUT", request[0]);
+      assertEquals("/metrics/job/pushed", request[1]);
+      assertTrue(request[2].contains("jdbc_pushed 1.0\n"));
+      assertFalse(request[2].contains("jdbc_scraped"));
+
+      final List<Collector.MetricFamilySamples> scraped = config.runJobs();
+      assertTrue(scraped.stream().anyMatch(mfs -> mfs.name.equals("jdbc_scraped")));
+      assertFalse(scraped.stream().anyMatch(mfs -> mfs.name.equals("jdbc_pushed")));
+    }
+  }
+
+  @Test
+  public void testPushedJobShouldMergeFamiliesOfItsConnections() throws InterruptedException {
+    try (JdbcConfig config = new JdbcConfig((Map<String, Object>) new Yaml().load("---\n" +
+        "push:\n" +
+        "  url: 'http://localhost:" + receiver.getAddress().getPort() + "'\n" +
+        "jobs:\n" +
+        "- name: \"pushed\"\n" +
+        "  interval: 1h\n" +
+        "  push: true\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:push_merge_a'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "    labels:\n" +
+        "      instance: a\n" +
+        "  - url: 'jdbc:h2:mem:push_merge_b'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "    labels:\n" +
+        "      instance: b\n" +
+        "  queries:\n" +
+        "  - name: pushed\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n"))) {
+      config.start();
+      final String[] request = requests.poll(30, TimeUnit.SECONDS);
+      assertNotNull(request);
+      assertEquals(request[2].indexOf("# TYPE jdbc_pushed gauge"), request[2].lastIndexOf("# TYPE jdbc_pushed gauge"));
+      assertEquals(request[2].indexOf("# TYPE jdbc_scrape_error"), request[2].lastIndexOf("# TYPE jdbc_scrape_error"));
+      assertTrue(request[2].contains("jdbc_pushed{instance=\"a\",} 1.0\n"));
+      assertTrue(request[2].contains("jdbc_pushed{instance=\"b\",} 1.0\n"));
+    }
+  }
+
+  @Test
+  public void testRemoteWriteShouldBeRetriedAfterFailures() throws InterruptedException {
+    failuresLeft.set(2);
+    try (JdbcConfig config = config("/api/v1/write'\n  format: remote_write")) {
+      config.start();
+      final String[] request = requests.poll(30, TimeUnit.SECONDS);
+      assertNotNull(request);
+      assertEquals("POST", request[0]);
+      assertEquals("/api/v1/write", request[1]);
+      assertTrue(request[2].contains("__name__"));
+      assertTrue(request[2].contains("jdbc_pushed"));
+      assertTrue(request[2].contains("job"));
+      assertEquals(-1, failuresLeft.get());
+    }
+  }
+
+  @Test
+  public void testWriteRequestsShouldBeBatched() {
+    final List<Collector.MetricFamilySamples> mfsList = Collections.singletonList(
+        new Collector.MetricFamilySamples("jdbc_batched", Collector.Type.GAUGE, "", Arrays.asList(
+            new Collector.MetricFamilySamples.Sample("jdbc_batched", Arrays.asList("l"), Arrays.asList("a"), 1.0),
+            new Collector.MetricFamilySamples.Sample("jdbc_batched", Arrays.asList("l"), Arrays.asList("b"), 2.0),
+            new Collector.MetricFamilySamples.Sample("jdbc_batched", Arrays.asList("l"), Arrays.asList("c"), 3.0))));
+
+    assertEquals(2, JdbcPusher.writeRequests("batched", mfsList, 0L, 2).size());
+    assertEquals(1, JdbcPusher.writeRequests("batched", mfsList, 0L, 3).size());
+
+    // One series: a TimeSeries holding the labels, sorted, and a single sample.
+    final byte[] request = JdbcPusher.writeRequests("batched", mfsList.subList(0, 1), 1L, 1).get(0);
+    final String text = new String(request, StandardCharsets.ISO_8859_1);
+    assertTrue(text.indexOf("__name__") < text.indexOf("job"));
+    assertTrue(text.indexOf("job") < text.indexOf("\n\u0001l"));
+    assertEquals(0x0A, request[0]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigShouldFailIfPushedJobHasNoInterval() {
+    new JdbcConfig((Map<String, Object>) new Yaml().load("---\n" +
+        "push:\n" +
+        "  url: 'http://localhost:9091'\n" +
+        "jobs:\n" +
+        "- name: \"global\"\n" +
+        "  push: true\n" +
+        "  connections:\n" +
+        "  - url: jdbc\n" +
+        "    username: sys\n" +
+        "    password: sys\n" +
+        "  queries:\n" +
+        "  - name: jdbc\n" +
+        "    values:\n" +
+        "    - v1\n" +
+        "    query: abc\n"));
+  }
+}
@@ -0,0 +1,120 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class JdbcSchedulerTest {
+
+  private static final String CONFIG = "---\n" +
+      "jobs:\n" +
+      "- name: \"scheduled\"\n" +
+      "  interval: '1h'\n" +
+      "  connections:\n" +
+      "  - url: 'jdbc:h2:mem:scheduler_test'\n" +
+      "    username: sa\n" +
+      "    password: ''\n" +
+      "  queries:\n" +
+      "  - name: one\n" +
+      "    values:\n" +
+      "    - v\n" +
+      "    query: select 1 as v\n";
+
+  @Test
+  public void testScheduledJobShouldBeServedFromSnapshot() throws InterruptedException {
+    try (JdbcConfig config = new JdbcConfig((Map<String, Object>) new Yaml().load(CONFIG))) {
+      config.start();
+
+      List<Collector.MetricFamilySamples> mfsList = config.runJobs();
+      long deadline = System.currentTimeMillis() + 10_000L;
+      while (mfsList.isEmpty() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(20L);
+        mfsList = config.runJobs();
+      }
+
+      assertTrue(mfsList.stream().anyMatch(mfs -> mfs.name.equals("jdbc_one")));
+
+      // Scrapes within the interval must not run the job again.
+      config.runJobs();
+      config.runJobs();
+      long creations = config.poolSamples().stream()
+          .filter(mfs -> mfs.name.equals("jdbc_pool_connection_create_seconds"))
+          .flatMap(mfs -> mfs.samples.stream())
+          .filter(sample -> sample.name.endsWith("_count"))
+          .mapToLong(sample -> (long) sample.value)
+          .sum();
+      assertEquals(1L, creations);
+      assertSame(config.runJobs().get(0), config.runJobs().get(0));
+    }
+  }
+
+  @Test
+  public void testSlowQueryShouldHaveItsIntervalStretched() throws InterruptedException {
+    try (JdbcConfig config = new JdbcConfig((Map<String, Object>) new Yaml().load("---\n" +
+        "jitter: 0.5\n" +
+        "stretch_threshold: 0.2\n" +
+        "jobs:\n" +
+        "- name: \"adaptive\"\n" +
+        "  interval: 100ms\n" +
+        "  connections:\n" +
+        "  - url: \"jdbc:h2:mem:stretch_test;INIT=CREATE ALIAS IF NOT EXISTS SLEEP FOR 'java.lang.Thread.sleep'\"\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: fast\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 1 as v\n" +
+        "  - name: slow\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 2 as v, sleep(60) as s\n"))) {
+      config.start();
+
+      double fast = 0.0;
+      double slow = 0.0;
+      long deadline = System.currentTimeMillis() + 10_000L;
+      while (slow <= 0.1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50L);
+        for (Collector.MetricFamilySamples.Sample sample : config.querySamples().stream()
+            .filter(mfs -> mfs.name.equals("jdbc_query_effective_interval_seconds"))
+            .findFirst()
+            .orElseThrow(AssertionError::new)
+            .samples) {
+          if (sample.labelValues.get(2).equals("fast")) {
+            fast = sample.value;
+          } else {
+            slow = sample.value;
+          }
+        }
+      }
+      assertEquals(0.1, fast, 0.0);
+      assertTrue(slow > 0.1);
+      assertTrue(slow <= 1.0);
+
+      // Runs in between serve the previous samples of the slow query.
+      assertTrue(config.runJobs().stream().anyMatch(mfs -> mfs.name.equals("jdbc_slow")));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigShouldFailIfJitterIsNotAFraction() {
+    new JdbcConfig((Map<String, Object>) new Yaml().load("jitter: 2\n" + CONFIG.substring(4)));
+  }
+
+  @Test
+  public void testUnscheduledConfigShouldRunJobsInline() {
+    try (JdbcConfig config = new JdbcConfig((Map<String, Object>) new Yaml().load(CONFIG))) {
+      List<Collector.MetricFamilySamples> mfsList = config.runJobs();
+      assertEquals(1.0, mfsList.get(0).samples.get(0).value, 0.0);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class JdbcStreamFlightTest {
+
+  private static final String LINE = "jdbc_streamed 1.0\n";
+
+  private static JdbcStreamFlight.Run join(JdbcStreamFlight flight, long minInterval) {
+    return flight.join(TextFormat.CONTENT_TYPE_004, minInterval, JdbcJobRun.NO_DEADLINE);
+  }
+
+  @Test
+  public void testRunsShouldNotKeepLinesNobodyCanShare() throws IOException {
+    JdbcStreamFlight flight = new JdbcStreamFlight();
+    JdbcStreamFlight.Run run = join(flight, 0L);
+    assertFalse(run.isShared());
+    StringWriter out = new StringWriter();
+    run.capture(out).write(LINE);
+    run.complete(true);
+
+    assertEquals(LINE, out.toString());
+    assertEquals(0, run.text().length());
+    // Scrapes arriving once it has started run the query on their own.
+    assertNotSame(run, join(flight, 0L));
+  }
+
+  @Test
+  public void testJoinedRunsShouldReleaseLinesOnceWritten() throws Exception {
+    JdbcStreamFlight flight = new JdbcStreamFlight();
+    JdbcStreamFlight.Run run = join(flight, 0L);
+    AtomicReference<String> written = new AtomicReference<>();
+    Thread joining = new Thread(() -> {
+      JdbcStreamFlight.Run joined = join(flight, 0L);
+      if (joined == run && joined.isShared()) {
+        written.set(joined.text().toString());
+        joined.release();
+      }
+    });
+    joining.start();
+    // The scrape joins before the first line, and waits for the run.
+    while (joining.getState() != Thread.State.WAITING) {
+      Thread.sleep(1L);
+    }
+    Writer captured = run.capture(new StringWriter());
+    captured.write(LINE);
+    run.complete(true);
+    joining.join();
+
+    assertEquals(LINE, written.get());
+    assertEquals(0, run.text().length());
+  }
+
+  @Test
+  public void testSharedLinesShouldBeReleasedAfterMinInterval() throws Exception {
+    JdbcStreamFlight flight = new JdbcStreamFlight();
+    JdbcStreamFlight.Run run = join(flight, 200L);
+    run.capture(new StringWriter()).write(LINE);
+    run.complete(true);
+
+    JdbcStreamFlight.Run shared = join(flight, 200L);
+    assertSame(run, shared);
+    assertEquals(LINE, shared.text().toString());
+    shared.release();
+
+    final long deadline = System.currentTimeMillis() + 5_000L;
+    while (run.text().length() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertEquals(0, run.text().length());
+    assertNotSame(run, join(flight, 200L));
+  }
+}
@@ -0,0 +1,65 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class JdbcTextEncoderTest {
+
+  private static final List<String> LABELS = Arrays.asList("db", "schema");
+
+  private static String encoded(String contentType, Collector.Type type, String name) throws IOException {
+    StringWriter writer = new StringWriter();
+    JdbcTextEncoder encoder = new JdbcTextEncoder(writer, contentType);
+    encoder.family(name, type, "Help with \"quotes\" and \\ and\nnewline");
+    final String sampleName = type == Collector.Type.COUNTER ? name + "_total" : name;
+    encoder.sample(sampleName, LABELS, new String[]{"a\"b", "c\\d\ne"}, 1.5);
+    encoder.sample(sampleName, LABELS, new String[]{"x", null}, Double.POSITIVE_INFINITY);
+    return writer.toString();
+  }
+
+  private static String formatted(String contentType, Collector.Type type, String name) throws IOException {
+    final String sampleName = type == Collector.Type.COUNTER ? name + "_total" : name;
+    Collector.MetricFamilySamples mfs =
+        new Collector.MetricFamilySamples(
+            name,
+            type,
+            "Help with \"quotes\" and \\ and\nnewline",
+            Arrays.asList(
+                new Collector.MetricFamilySamples.Sample(sampleName, LABELS, Arrays.asList("a\"b", "c\\d\ne"), 1.5),
+                new Collector.MetricFamilySamples.Sample(
+                    sampleName, LABELS, Arrays.asList("x", ""), Double.POSITIVE_INFINITY)));
+    StringWriter writer = new StringWriter();
+    TextFormat.writeFormat(contentType, writer, Collections.enumeration(Collections.singletonList(mfs)));
+    return writer.toString();
+  }
+
+  @Test
+  public void testEncoderShouldMatchTextFormat() throws IOException {
+    for (Collector.Type type : Arrays.asList(Collector.Type.GAUGE, Collector.Type.COUNTER, Collector.Type.UNKNOWN)) {
+      assertEquals(
+          formatted(TextFormat.CONTENT_TYPE_004, type, "jdbc_sizes"),
+          encoded(TextFormat.CONTENT_TYPE_004, type, "jdbc_sizes"));
+    }
+  }
+
+  @Test
+  public void testEncoderShouldMatchOpenMetrics() throws IOException {
+    for (Collector.Type type : Arrays.asList(Collector.Type.GAUGE, Collector.Type.COUNTER, Collector.Type.UNKNOWN)) {
+      assertEquals(
+          formatted(TextFormat.CONTENT_TYPE_OPENMETRICS_100, type, "jdbc_sizes"),
+          encoded(TextFormat.CONTENT_TYPE_OPENMETRICS_100, type, "jdbc_sizes") + "# EOF\n");
+    }
+  }
+}
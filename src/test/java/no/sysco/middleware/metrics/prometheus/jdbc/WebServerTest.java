@@ -0,0 +1,161 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import io.prometheus.client.CollectorRegistry;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class WebServerTest {
+  private JdbcCollector collector;
+  private Server server;
+  private int port;
+
+  @Before
+  public void startServer() throws Exception {
+    collector = new JdbcCollector("---\n" +
+        "history:\n" +
+        "  size: 2\n" +
+        "jobs:\n" +
+        "- name: \"served\"\n" +
+        "  connections:\n" +
+        "  - url: 'jdbc:h2:mem:server_test'\n" +
+        "    username: sa\n" +
+        "    password: ''\n" +
+        "  queries:\n" +
+        "  - name: rows\n" +
+        "    labels:\n" +
+        "    - l\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select x as v, 'row' || x as l from system_range(1, 500)\n" +
+        "  - name: streamed\n" +
+        "    stream: true\n" +
+        "    values:\n" +
+        "    - v\n" +
+        "    query: select 7 as v\n").start().register();
+
+    server =
+        WebServer.createServer(
+            new InetSocketAddress("localhost", 0),
+            WebServer.Settings.parse((Map<String, Object>) new Yaml().load("server:\n  max_threads: 4\n")),
+            collector);
+    server.start();
+    port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    server.stop();
+    CollectorRegistry.defaultRegistry.unregister(collector);
+    collector.close();
+  }
+
+  private HttpURLConnection get(String path, String accept, String encoding) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+    if (accept != null) {
+      connection.setRequestProperty("Accept", accept);
+    }
+    if (encoding != null) {
+      connection.setRequestProperty("Accept-Encoding", encoding);
+    }
+    return connection;
+  }
+
+  private static String body(HttpURLConnection connection) throws IOException {
+    InputStream in = connection.getInputStream();
+    if ("gzip".equals(connection.getContentEncoding())) {
+      in = new GZIPInputStream(in);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int read; (read = in.read(buffer)) != -1; ) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testMetricsShouldBeServedAsText() throws IOException {
+    HttpURLConnection connection = get("/metrics", null, null);
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(connection.getContentType().startsWith("text/plain"));
+    final String body = body(connection);
+    assertTrue(body.contains("jdbc_rows{l=\"row500\",} 500.0\n"));
+    assertTrue(body.contains("jdbc_streamed 7.0\n"));
+  }
+
+  @Test
+  public void testMetricsShouldNegotiateOpenMetricsAndGzip() throws IOException {
+    HttpURLConnection connection = get("/metrics", "application/openmetrics-text; version=1.0.0", "gzip");
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(connection.getContentType().startsWith("application/openmetrics-text"));
+    assertEquals("gzip", connection.getContentEncoding());
+    final String body = body(connection);
+    assertTrue(body.contains("jdbc_rows{l=\"row1\"} 1.0\n"));
+    assertTrue(body.contains("jdbc_streamed 7.0\n"));
+    assertTrue(body.endsWith("# EOF\n"));
+  }
+
+  @Test
+  public void testProbeShouldRejectUnknownJob() throws IOException {
+    assertEquals(404, get("/probe?job=missing", null, null).getResponseCode());
+    assertEquals(400, get("/probe", null, null).getResponseCode());
+
+    HttpURLConnection connection = get("/probe?job=served", null, null);
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(body(connection).contains("jdbc_rows{l=\"row2\",} 2.0\n"));
+  }
+
+  @Test
+  public void testReadyShouldBeServedOnceWarmedUp() throws Exception {
+    final long deadline = System.currentTimeMillis() + 30_000L;
+    int status = get("/ready", null, null).getResponseCode();
+    while (status != 200 && System.currentTimeMillis() < deadline) {
+      assertEquals(503, status);
+      Thread.sleep(50L);
+      status = get("/ready", null, null).getResponseCode();
+    }
+    assertEquals("Ready.\n", body(get("/ready", null, null)));
+  }
+
+  @Test
+  public void testHistoryShouldServeTheLastRunsWithTimestamps() throws IOException {
+    assertEquals(404, get("/history?job=missing", null, null).getResponseCode());
+    assertEquals(400, get("/history?since=yesterday", null, null).getResponseCode());
+
+    final long before = System.currentTimeMillis() / 1000L - 1L;
+    for (int i = 0; i < 3; i++) {
+      assertEquals(200, get("/metrics", null, null).getResponseCode());
+    }
+
+    HttpURLConnection connection = get("/history?job=served&since=" + before, null, null);
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(connection.getContentType().startsWith("application/openmetrics-text"));
+    final String body = body(connection);
+    assertTrue(body.contains("# TYPE jdbc_rows gauge\n"));
+    assertTrue(body.endsWith("# EOF\n"));
+    // Only the last two runs are kept.
+    assertEquals(2, body.split("jdbc_rows\\{l=\"row500\"} 500\\.0 \\d+\\.\\d{3}\n", -1).length - 1);
+
+    assertEquals("# EOF\n", body(get("/history?since=" + (before + 3600L), null, null)));
+  }
+}